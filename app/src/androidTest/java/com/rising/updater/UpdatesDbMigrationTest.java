@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.rising.updater.UpdatesDbHelper.UpdateEntry;
+import com.rising.updater.UpdatesDbHelper.VerificationEntry;
+import com.rising.updater.model.DownloadState;
+import com.rising.updater.model.Update;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+public class UpdatesDbMigrationTest {
+
+    private static final String DATABASE_NAME = "updates-migration-test.db";
+
+    // Schema of the first version, without the state of the downloads
+    private static final String SQL_CREATE_ENTRIES_V1 =
+            "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
+                    UpdateEntry._ID + " INTEGER PRIMARY KEY," +
+                    UpdateEntry.COLUMN_NAME_STATUS + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_PATH + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+
+    private static final String SQL_CREATE_VERIFICATIONS_V2 =
+            "CREATE TABLE " + VerificationEntry.TABLE_NAME + " (" +
+                    VerificationEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerificationEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    VerificationEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_MTIME + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_DIGEST + " TEXT)";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    private SQLiteDatabase openRaw() {
+        return mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+    }
+
+    private static void insertUpdateV1(SQLiteDatabase db, String downloadId) {
+        db.execSQL("INSERT INTO " + UpdateEntry.TABLE_NAME + " (" +
+                UpdateEntry.COLUMN_NAME_STATUS + ", " +
+                UpdateEntry.COLUMN_NAME_PATH + ", " +
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + ", " +
+                UpdateEntry.COLUMN_NAME_TIMESTAMP + ", " +
+                UpdateEntry.COLUMN_NAME_TYPE + ", " +
+                UpdateEntry.COLUMN_NAME_VERSION + ", " +
+                UpdateEntry.COLUMN_NAME_SIZE + ") VALUES (1, ?, ?, 1700000000, 'OFFICIAL'," +
+                " '14.0', 1048576)", new Object[]{"/data/" + downloadId + ".zip", downloadId});
+    }
+
+    private static void insertVerificationV2(SQLiteDatabase db, String path) {
+        db.execSQL("INSERT INTO " + VerificationEntry.TABLE_NAME + " (" +
+                VerificationEntry.COLUMN_NAME_PATH + ", " +
+                VerificationEntry.COLUMN_NAME_SIZE + ", " +
+                VerificationEntry.COLUMN_NAME_MTIME + ", " +
+                VerificationEntry.COLUMN_NAME_INODE + ", " +
+                VerificationEntry.COLUMN_NAME_DIGEST + ") VALUES (?, 1048576, 1, 2, 'abcd')",
+                new Object[]{path});
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    private static void assertUpdate(List<Update> updates, String downloadId) {
+        for (Update update : updates) {
+            if (downloadId.equals(update.getDownloadId())) {
+                assertEquals(1048576, update.getFileSize());
+                assertEquals("14.0", update.getVersion());
+                return;
+            }
+        }
+        fail(downloadId + " was lost");
+    }
+
+    /**
+     * The state of the downloads can be stored and read back after an upgrade.
+     */
+    private static void assertDownloadStateWorks(UpdatesDbHelper helper, String downloadId) {
+        helper.changeDownloadState(downloadId, new DownloadState(4096, "\"etag\"",
+                "https://mirror.example.com/" + downloadId, 1000));
+        DownloadState state = helper.getDownloadStates().get(downloadId);
+        assertNotNull(state);
+        assertEquals(4096, state.getDownloadedBytes());
+        assertEquals("\"etag\"", state.getValidator());
+        assertEquals(1000, state.getSpeed());
+    }
+
+    @Test
+    public void upgradeFromVersion1() {
+        try (SQLiteDatabase db = openRaw()) {
+            db.execSQL(SQL_CREATE_ENTRIES_V1);
+            insertUpdateV1(db, "first");
+            db.setVersion(1);
+        }
+
+        try (UpdatesDbHelper helper = new UpdatesDbHelper(mContext, DATABASE_NAME)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(UpdatesDbHelper.DATABASE_VERSION, db.getVersion());
+            List<Update> updates = helper.getUpdates();
+            assertEquals(1, updates.size());
+            assertUpdate(updates, "first");
+            assertTrue(helper.getDownloadStates().isEmpty());
+            assertEquals(0, count(db, VerificationEntry.TABLE_NAME));
+            assertDownloadStateWorks(helper, "first");
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion2() {
+        try (SQLiteDatabase db = openRaw()) {
+            db.execSQL(SQL_CREATE_ENTRIES_V1);
+            db.execSQL(SQL_CREATE_VERIFICATIONS_V2);
+            insertUpdateV1(db, "second");
+            insertVerificationV2(db, "/data/second.zip");
+            db.setVersion(2);
+        }
+
+        try (UpdatesDbHelper helper = new UpdatesDbHelper(mContext, DATABASE_NAME)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(UpdatesDbHelper.DATABASE_VERSION, db.getVersion());
+            assertUpdate(helper.getUpdates(), "second");
+            assertEquals(1, count(db, VerificationEntry.TABLE_NAME));
+            assertDownloadStateWorks(helper, "second");
+        }
+    }
+
+    @Test
+    public void downgradeThenUpgrade() {
+        try (UpdatesDbHelper helper = new UpdatesDbHelper(mContext, DATABASE_NAME)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            insertUpdateV1(db, "current");
+            insertVerificationV2(db, "/data/current.zip");
+            assertDownloadStateWorks(helper, "current");
+        }
+
+        // An older version of the app keeps the newer schema, it only changes the
+        // version and inserts rows without the newer columns
+        try (SQLiteDatabase db = openRaw()) {
+            db.setVersion(2);
+            insertUpdateV1(db, "older");
+        }
+
+        // The steps run again on the newer schema
+        try (UpdatesDbHelper helper = new UpdatesDbHelper(mContext, DATABASE_NAME)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(UpdatesDbHelper.DATABASE_VERSION, db.getVersion());
+            List<Update> updates = helper.getUpdates();
+            assertEquals(2, updates.size());
+            assertUpdate(updates, "current");
+            assertUpdate(updates, "older");
+            assertEquals(1, count(db, VerificationEntry.TABLE_NAME));
+            Map<String, DownloadState> states = helper.getDownloadStates();
+            assertEquals(1, states.size());
+            assertEquals(4096, states.get("current").getDownloadedBytes());
+            assertDownloadStateWorks(helper, "older");
+        }
+    }
+
+    @Test
+    public void failedUpgradeKeepsData() {
+        // Version 2 without the table of the updates, so adding its columns fails
+        try (SQLiteDatabase db = openRaw()) {
+            db.execSQL(SQL_CREATE_VERIFICATIONS_V2);
+            insertVerificationV2(db, "/data/kept.zip");
+            db.setVersion(2);
+        }
+
+        try (UpdatesDbHelper helper = new UpdatesDbHelper(mContext, DATABASE_NAME)) {
+            helper.getWritableDatabase();
+            fail("The upgrade didn't fail");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        try (SQLiteDatabase db = openRaw()) {
+            assertEquals(2, db.getVersion());
+            assertEquals(1, count(db, VerificationEntry.TABLE_NAME));
+        }
+    }
+}
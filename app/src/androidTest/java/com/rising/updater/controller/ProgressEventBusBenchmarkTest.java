@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares ProgressEventBus with the local broadcasts it replaced, on the same
+ * workload: progress of a few updates posted from a background thread, as the
+ * downloads and verifications do. Allocations are counted on the posting thread
+ * and for the whole process until everything was delivered, and the latency from
+ * a post to its delivery is measured with one post at a time.
+ * The results are logged with the tag of the test, only the allocations of the
+ * posting thread are expected to differ.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+@SuppressWarnings("deprecation")
+public class ProgressEventBusBenchmarkTest {
+
+    private static final String TAG = "ProgressEventBusBenchmark";
+
+    private static final int UPDATES = 4;
+    private static final int EVENTS = 20000;
+    private static final int LATENCY_SAMPLES = 50;
+    // Longer than a frame, so that every sample waits for a frame of its own
+    private static final long LATENCY_PAUSE_MS = 50;
+
+    private static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
+    private static final String ACTION_VERIFICATION_PROGRESS = "action_verification_progress";
+    private static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
+    private static final String LAST_ID = "progress-event-bus-benchmark-last";
+
+    private static final String[] DOWNLOAD_IDS = new String[UPDATES];
+
+    static {
+        for (int i = 0; i < UPDATES; i++) {
+            DOWNLOAD_IDS[i] = "progress-event-bus-benchmark-" + i;
+        }
+    }
+
+    private static class Result {
+        long mThreadAllocs;
+        long mGlobalAllocs;
+        long mPostNanos;
+        long mMedianLatencyNanos;
+        long mMaxLatencyNanos;
+
+        @Override
+        public String toString() {
+            return String.format("%.2f allocations per post on the posting thread," +
+                            " %.2f in total, %.0f ns per post, latency median %.2f ms," +
+                            " max %.2f ms",
+                    (double) mThreadAllocs / EVENTS, (double) mGlobalAllocs / EVENTS,
+                    (double) mPostNanos / EVENTS, mMedianLatencyNanos / 1e6,
+                    mMaxLatencyNanos / 1e6);
+        }
+    }
+
+    /**
+     * One of the implementations under test.
+     */
+    private interface Channel {
+        void post(boolean verification, String downloadId);
+
+        /**
+         * Called on the main thread with the delivered update.
+         */
+        void setReceiver(ReceiverCallback callback);
+
+        void close();
+    }
+
+    private interface ReceiverCallback {
+        void onReceive(String downloadId);
+    }
+
+    private static class EventBusChannel implements Channel {
+        private final ProgressEventBus mBus = ProgressEventBus.getInstance();
+        private final ProgressEventBus.Listener mListener;
+        private volatile ReceiverCallback mCallback;
+
+        EventBusChannel() {
+            mListener = (type, downloadId) -> mCallback.onReceive(downloadId);
+            mBus.register(mListener);
+        }
+
+        @Override
+        public void post(boolean verification, String downloadId) {
+            mBus.post(verification ? ProgressEventBus.Type.VERIFICATION :
+                    ProgressEventBus.Type.DOWNLOAD, downloadId);
+        }
+
+        @Override
+        public void setReceiver(ReceiverCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void close() {
+            mBus.unregister(mListener);
+        }
+    }
+
+    private static class BroadcastChannel implements Channel {
+        private final LocalBroadcastManager mBroadcastManager;
+        private final BroadcastReceiver mReceiver;
+        private volatile ReceiverCallback mCallback;
+
+        BroadcastChannel(Context context) {
+            mBroadcastManager = LocalBroadcastManager.getInstance(context);
+            mReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    mCallback.onReceive(intent.getStringExtra(EXTRA_DOWNLOAD_ID));
+                }
+            };
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(ACTION_DOWNLOAD_PROGRESS);
+            filter.addAction(ACTION_VERIFICATION_PROGRESS);
+            mBroadcastManager.registerReceiver(mReceiver, filter);
+        }
+
+        // Same as UpdaterController did before the bus
+        @Override
+        public void post(boolean verification, String downloadId) {
+            Intent intent = new Intent();
+            intent.setAction(verification ? ACTION_VERIFICATION_PROGRESS :
+                    ACTION_DOWNLOAD_PROGRESS);
+            intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
+            mBroadcastManager.sendBroadcast(intent);
+        }
+
+        @Override
+        public void setReceiver(ReceiverCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void close() {
+            mBroadcastManager.unregisterReceiver(mReceiver);
+        }
+    }
+
+    private static void runOnBackgroundThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable, TAG);
+        thread.start();
+        thread.join();
+    }
+
+    /**
+     * Post the events from a background thread, followed by one for another update
+     * that's delivered last.
+     */
+    private static void postAll(Channel channel, Result result) throws InterruptedException {
+        CountDownLatch delivered = new CountDownLatch(1);
+        channel.setReceiver(downloadId -> {
+            if (LAST_ID.equals(downloadId)) {
+                delivered.countDown();
+            }
+        });
+        final long globalAllocs = Debug.getGlobalAllocCount();
+        runOnBackgroundThread(() -> {
+            Debug.resetThreadAllocCount();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < EVENTS; i++) {
+                channel.post(i % 2 == 1, DOWNLOAD_IDS[i % UPDATES]);
+            }
+            channel.post(false, LAST_ID);
+            if (result != null) {
+                result.mPostNanos = SystemClock.elapsedRealtimeNanos() - start;
+                result.mThreadAllocs = Debug.getThreadAllocCount();
+            }
+        });
+        assertTrue(delivered.await(30, TimeUnit.SECONDS));
+        if (result != null) {
+            result.mGlobalAllocs = Debug.getGlobalAllocCount() - globalAllocs;
+        }
+    }
+
+    private static void measureLatency(Channel channel, Result result)
+            throws InterruptedException {
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        final AtomicLong postTime = new AtomicLong();
+        for (int i = 0; i < LATENCY_SAMPLES; i++) {
+            CountDownLatch delivered = new CountDownLatch(1);
+            final int sample = i;
+            channel.setReceiver(downloadId -> {
+                latencies[sample] = SystemClock.elapsedRealtimeNanos() - postTime.get();
+                delivered.countDown();
+            });
+            runOnBackgroundThread(() -> {
+                postTime.set(SystemClock.elapsedRealtimeNanos());
+                channel.post(false, DOWNLOAD_IDS[0]);
+            });
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            Thread.sleep(LATENCY_PAUSE_MS);
+        }
+        Arrays.sort(latencies);
+        result.mMedianLatencyNanos = latencies[LATENCY_SAMPLES / 2];
+        result.mMaxLatencyNanos = latencies[LATENCY_SAMPLES - 1];
+    }
+
+    private static Result run(Channel channel) throws InterruptedException {
+        Result result = new Result();
+        try {
+            // Warm up, the bus only allocates for updates it never saw
+            postAll(channel, null);
+            Debug.startAllocCounting();
+            try {
+                postAll(channel, result);
+            } finally {
+                Debug.stopAllocCounting();
+            }
+            measureLatency(channel, result);
+        } finally {
+            channel.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void compareWithLocalBroadcasts() throws InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Result broadcasts = run(new BroadcastChannel(context));
+        Result bus = run(new EventBusChannel());
+        Log.i(TAG, "LocalBroadcastManager: " + broadcasts);
+        Log.i(TAG, "ProgressEventBus: " + bus);
+
+        // Counting isn't supported by every runtime
+        assumeTrue(broadcasts.mThreadAllocs > 0);
+        // An Intent and its extras for every broadcast, almost nothing for the bus
+        assertTrue(bus.toString(), bus.mThreadAllocs * 100 < EVENTS);
+        assertTrue(bus.mThreadAllocs < broadcasts.mThreadAllocs);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ProgressEventBusTest {
+
+    private static final String TAG = "ProgressEventBusTest";
+
+    private static final int UPDATES = 8;
+    private static final int EVENTS_PER_UPDATE = 10000;
+
+    private final Map<String, AtomicInteger> mDispatches = new ConcurrentHashMap<>();
+    private final AtomicInteger mWrongThread = new AtomicInteger();
+    private CountDownLatch mDispatched;
+
+    private final ProgressEventBus.Listener mListener = (type, downloadId) -> {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mWrongThread.incrementAndGet();
+        }
+        mDispatches.computeIfAbsent(type + "/" + downloadId, k -> new AtomicInteger())
+                .incrementAndGet();
+        mDispatched.countDown();
+    };
+
+    @Before
+    public void setUp() {
+        ProgressEventBus.getInstance().register(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        ProgressEventBus.getInstance().unregister(mListener);
+    }
+
+    private static String getDownloadId(int update) {
+        return "progress-event-bus-test-" + update;
+    }
+
+    /**
+     * Posts many events of a few types for several updates before the main thread can
+     * dispatch them, like the download and verification threads do within a frame.
+     * Each update and type must be dispatched once.
+     */
+    @Test
+    public void oneDispatchPerFrame() throws InterruptedException {
+        final ProgressEventBus bus = ProgressEventBus.getInstance();
+        final ProgressEventBus.Type[] types = {
+                ProgressEventBus.Type.DOWNLOAD,
+                ProgressEventBus.Type.VERIFICATION,
+        };
+        mDispatched = new CountDownLatch(UPDATES * types.length);
+
+        final long[] elapsed = new long[1];
+        // Nothing is dispatched while the main thread is busy posting
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < EVENTS_PER_UPDATE; i++) {
+                for (int update = 0; update < UPDATES; update++) {
+                    bus.post(types[i % types.length], getDownloadId(update));
+                }
+            }
+            elapsed[0] = SystemClock.elapsedRealtimeNanos() - start;
+        });
+
+        assertTrue(mDispatched.await(5, TimeUnit.SECONDS));
+        // Give a second dispatch the time to happen if anything was left pending
+        Thread.sleep(100);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals(0, mWrongThread.get());
+        assertEquals(UPDATES * types.length, mDispatches.size());
+        for (Map.Entry<String, AtomicInteger> dispatch : mDispatches.entrySet()) {
+            assertEquals(dispatch.getKey(), 1, dispatch.getValue().get());
+        }
+        Log.i(TAG, String.format("%d posts, %.0f ns per post", UPDATES * EVENTS_PER_UPDATE,
+                (double) elapsed[0] / (UPDATES * EVENTS_PER_UPDATE)));
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.rising.updater.UpdatesDbHelper;
+import com.rising.updater.download.DownloadClient;
+import com.rising.updater.model.Update;
+import com.rising.updater.model.UpdateInfo;
+import com.rising.updater.model.UpdateStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts, pauses, resumes and deletes a few downloads from many threads at once,
+ * with clients that finish on their own in the meantime, and checks that the
+ * controller keeps track of every client and of the status of every update.
+ * The clients are fakes and the database is in memory.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class UpdaterControllerStressTest {
+
+    private static final int UPDATES = 4;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 2000;
+    private static final long QUIESCE_TIMEOUT_MS = 10000;
+
+    private File mDownloadRoot;
+    private UpdatesDbHelper mDbHelper;
+    private UpdaterController mController;
+
+    // Clients that were started and didn't report their outcome yet
+    private final Set<FakeClient> mRunning = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger mBuilt = new AtomicInteger();
+
+    private class FakeClient implements DownloadClient {
+        private final String mDownloadId;
+        private final DownloadClient.DownloadCallback mCallback;
+        private final File mDestination;
+        private final Random mRandom;
+        private volatile boolean mCancelled;
+        private volatile Thread mThread;
+
+        private FakeClient(String downloadId, DownloadClient.DownloadCallback callback,
+                File destination, long seed) {
+            mDownloadId = downloadId;
+            mCallback = callback;
+            mDestination = destination;
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public void start() {
+            run();
+        }
+
+        @Override
+        public void resume() {
+            run();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mThread.interrupt();
+        }
+
+        private void run() {
+            mRunning.add(this);
+            mThread = new Thread(() -> {
+                try {
+                    download();
+                } finally {
+                    mRunning.remove(this);
+                }
+            }, "FakeClient-" + mDownloadId);
+            mThread.start();
+        }
+
+        private void download() {
+            try {
+                Thread.sleep(mRandom.nextInt(3));
+                try (FileOutputStream outputStream = new FileOutputStream(mDestination)) {
+                    outputStream.write(new byte[16]);
+                }
+                mCallback.onResponse(name -> null);
+                switch (mRandom.nextInt(3)) {
+                    case 0:
+                        // Only stops when paused
+                        Thread.sleep(Long.MAX_VALUE);
+                        break;
+                    case 1:
+                        Thread.sleep(mRandom.nextInt(3));
+                        mCallback.onFailure(mCancelled);
+                        break;
+                    default:
+                        Thread.sleep(mRandom.nextInt(3));
+                        if (mCancelled) {
+                            mCallback.onFailure(true);
+                        } else {
+                            mCallback.onSuccess();
+                        }
+                        break;
+                }
+            } catch (InterruptedException | IOException e) {
+                mCallback.onFailure(mCancelled);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDownloadRoot = new File(context.getCacheDir(), "controller-stress");
+        mDownloadRoot.mkdirs();
+        mDbHelper = new UpdatesDbHelper(context, null);
+        mController = new UpdaterController(context, mDbHelper, mDownloadRoot,
+                (downloadId, builder, callback) -> {
+                    mBuilt.incrementAndGet();
+                    // Called with the lock of the download held, after the file was chosen
+                    UpdateInfo update = mController.getUpdate(downloadId);
+                    return new FakeClient(downloadId, callback, update.getFile(),
+                            mBuilt.get());
+                });
+        long deadline = SystemClock.elapsedRealtime() + QUIESCE_TIMEOUT_MS;
+        while (!mController.isLoaded()) {
+            assertTrue(SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < UPDATES; i++) {
+            Update update = new Update();
+            update.setDownloadId(getDownloadId(i));
+            update.setName(getDownloadId(i) + ".zip");
+            // Unreachable, the verification falls back to the platform verifier
+            update.setDownloadUrl("https://127.0.0.1:1/" + getDownloadId(i));
+            update.setTimestamp(i);
+            update.setFileSize(16);
+            assertTrue(mController.addUpdate(update));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (FakeClient client : mRunning) {
+            client.cancel();
+        }
+        mDbHelper.close();
+        File[] files = mDownloadRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDownloadRoot.delete();
+    }
+
+    private static String getDownloadId(int update) {
+        return "controller-stress-test-" + update;
+    }
+
+    @Test
+    public void concurrentOperations() throws InterruptedException {
+        final AtomicInteger minActive = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < OPERATIONS; i++) {
+                    String downloadId = getDownloadId(random.nextInt(UPDATES));
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            mController.startDownload(downloadId);
+                            break;
+                        case 1:
+                            mController.pauseDownload(downloadId);
+                            break;
+                        case 2:
+                            mController.resumeDownload(downloadId);
+                            break;
+                        default:
+                            mController.deleteUpdate(downloadId);
+                            break;
+                    }
+                    int active = mController.getActiveDownloadCount();
+                    minActive.accumulateAndGet(active, Math::min);
+                    maxActive.accumulateAndGet(active, Math::max);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Negative active downloads: " + minActive.get(), minActive.get() >= 0);
+        assertTrue("Too many active downloads: " + maxActive.get(),
+                maxActive.get() <= UPDATES);
+        assertTrue("No client was started", mBuilt.get() > 0);
+
+        quiesce();
+
+        // Pausing everything must have stopped every client the controller started
+        assertEquals("Orphaned clients", 0, mRunning.size());
+        assertEquals(0, mController.getActiveDownloadCount());
+        assertFalse(mController.hasActiveDownloads());
+        assertFalse(mController.isVerifyingUpdate());
+
+        mController.flushDatabase();
+        Map<String, Update> stored = new HashMap<>();
+        for (Update update : mDbHelper.getUpdates()) {
+            stored.put(update.getDownloadId(), update);
+        }
+        for (int i = 0; i < UPDATES; i++) {
+            String downloadId = getDownloadId(i);
+            UpdateInfo update = mController.getUpdate(downloadId);
+            assertNotNull(downloadId, update);
+            assertFalse(downloadId, mController.isDownloading(downloadId));
+            checkStatus(update, stored.get(downloadId));
+        }
+    }
+
+    /**
+     * Pause everything until nothing runs, the starts queued on the IO pool can
+     * still start clients after the threads are done.
+     */
+    private void quiesce() throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + QUIESCE_TIMEOUT_MS;
+        int idleRounds = 0;
+        while (idleRounds < 3 && SystemClock.elapsedRealtime() < deadline) {
+            for (int i = 0; i < UPDATES; i++) {
+                mController.pauseDownload(getDownloadId(i));
+            }
+            Thread.sleep(100);
+            boolean idle = mRunning.isEmpty() && !mController.hasActiveDownloads() &&
+                    !mController.isVerifyingUpdate();
+            idleRounds = idle ? idleRounds + 1 : 0;
+        }
+    }
+
+    private static void checkStatus(UpdateInfo update, Update stored) {
+        final String downloadId = update.getDownloadId();
+        final UpdateStatus status = update.getStatus();
+        final int persistentStatus = update.getPersistentStatus();
+        final String message = downloadId + " " + status + "/" + persistentStatus;
+
+        // Nothing is downloading or verifying anymore
+        assertNotEquals(message, UpdateStatus.STARTING, status);
+        assertNotEquals(message, UpdateStatus.DOWNLOADING, status);
+        assertNotEquals(message, UpdateStatus.VERIFYING, status);
+
+        switch (status) {
+            case DELETED:
+            case VERIFICATION_FAILED:
+                assertEquals(message, UpdateStatus.Persistent.UNKNOWN, persistentStatus);
+                break;
+            case VERIFIED:
+                assertEquals(message, UpdateStatus.Persistent.VERIFIED, persistentStatus);
+                break;
+        }
+        if (persistentStatus == UpdateStatus.Persistent.INCOMPLETE) {
+            assertTrue(message, status == UpdateStatus.PAUSED ||
+                    status == UpdateStatus.PAUSED_ERROR ||
+                    status == UpdateStatus.PAUSED_NO_SPACE);
+        }
+
+        // What a new run would load
+        if (persistentStatus == UpdateStatus.Persistent.UNKNOWN) {
+            assertNull(message, stored);
+        } else {
+            assertNotNull(message, stored);
+            assertEquals(message, persistentStatus, stored.getPersistentStatus());
+        }
+    }
+}
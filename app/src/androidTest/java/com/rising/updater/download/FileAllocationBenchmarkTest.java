@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the sequential read throughput of a file allocated before being written
+ * with one grown by appending writes, like the download clients do.
+ * The appended file is written together with a second file, as the other apps
+ * writing to the storage would, so that their blocks get interleaved.
+ * The results are logged with the tag of the test, there's no expected ratio.
+ * The files are read with O_DIRECT, bypassing the page cache that still holds what
+ * was just written, so that the reads measure the storage. File systems that can't
+ * do direct I/O on a file, such as f2fs with some encryption modes, silently read
+ * through the cache instead.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FileAllocationBenchmarkTest {
+
+    private static final String TAG = "FileAllocationBenchmark";
+
+    private static final long FILE_SIZE = 256L * 1024 * 1024;
+    private static final int WRITE_SIZE = 8192;
+    private static final int READ_SIZE = 1024 * 1024;
+    // Alignment of the buffer and of the reads required by O_DIRECT
+    private static final int ALIGNMENT = 4096;
+    private static final int ROUNDS = 3;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDir = new File(context.getFilesDir(), "allocation-benchmark");
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static void write(RandomAccessFile file, RandomAccessFile other, long length)
+            throws IOException {
+        byte[] b = new byte[WRITE_SIZE];
+        for (long written = 0; written < length; written += b.length) {
+            b[0] = (byte) written;
+            file.write(b);
+            if (other != null) {
+                other.write(b);
+            }
+        }
+        file.getFD().sync();
+        if (other != null) {
+            other.getFD().sync();
+        }
+    }
+
+    private static double read(File file) throws IOException, ErrnoException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE + ALIGNMENT)
+                .alignedSlice(ALIGNMENT);
+        long total = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        FileDescriptor fd = Os.open(file.getPath(),
+                OsConstants.O_RDONLY | OsConstants.O_DIRECT, 0);
+        try {
+            int count;
+            do {
+                buffer.clear();
+                count = Os.read(fd, buffer);
+                total += Math.max(count, 0);
+            } while (count > 0);
+        } finally {
+            Os.close(fd);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(FILE_SIZE, total);
+        return total / 1024.0 / 1024.0 / (elapsed / 1e9);
+    }
+
+    @Test
+    public void sequentialRead() throws IOException, ErrnoException {
+        // For ByteBuffer.alignedSlice()
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU);
+        File allocated = new File(mDir, "allocated");
+        File appended = new File(mDir, "appended");
+        File interleaved = new File(mDir, "interleaved");
+
+        try (RandomAccessFile file = new RandomAccessFile(allocated, "rw")) {
+            FileAllocator.allocate(file, FILE_SIZE);
+            write(file, null, FILE_SIZE);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(appended, "rw");
+             RandomAccessFile other = new RandomAccessFile(interleaved, "rw")) {
+            write(file, other, FILE_SIZE);
+        }
+        interleaved.delete();
+
+        double allocatedSum = 0;
+        double appendedSum = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            // Alternate the order so that neither file always reads second
+            if (i % 2 == 0) {
+                allocatedSum += read(allocated);
+                appendedSum += read(appended);
+            } else {
+                appendedSum += read(appended);
+                allocatedSum += read(allocated);
+            }
+        }
+        Log.i(TAG, String.format("Sequential read of %d MB: allocated %.1f MB/s," +
+                        " appended %.1f MB/s", FILE_SIZE / 1024 / 1024,
+                allocatedSum / ROUNDS, appendedSum / ROUNDS));
+    }
+}
@@ -19,21 +19,43 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.UriPermission;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
+import androidx.preference.PreferenceManager;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import com.rising.updater.controller.UpdaterController;
+import com.rising.updater.misc.BackgroundExecutor;
 import com.rising.updater.misc.FileUtils;
+import com.rising.updater.misc.TarWriter;
+import com.rising.updater.model.UpdateInfo;
+import com.rising.updater.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ExportUpdateService extends Service {
 
@@ -42,16 +64,32 @@ public class ExportUpdateService extends Service {
     private static final int NOTIFICATION_ID = 16;
 
     public static final String ACTION_START_EXPORTING = "start_exporting";
+    public static final String ACTION_START_BATCH_EXPORTING = "start_batch_exporting";
 
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_URI = "dest_uri";
+    // Optional destination of the checksum file, written once the export completed
+    public static final String EXTRA_CHECKSUM_URI = "checksum_uri";
+    // Continue an interrupted export to the same destination instead of starting over
+    public static final String EXTRA_RESUME = "resume";
+    public static final String EXTRA_DOWNLOAD_IDS = "download_ids";
+
+    public static final String BATCH_MANIFEST_NAME = "manifest.json";
 
     private static final String EXPORT_NOTIFICATION_CHANNEL =
             "export_notification_channel";
 
-    private volatile boolean mIsExporting = false;
+    private static final String PREF_EXPORT_SOURCE = "export_source";
+    private static final String PREF_EXPORT_SOURCE_SIZE = "export_source_size";
+    private static final String PREF_EXPORT_SOURCE_MTIME = "export_source_mtime";
+    private static final String PREF_EXPORT_DEST = "export_dest";
+    private static final String PREF_EXPORT_CHECKSUM_DEST = "export_checksum_dest";
+    private static final String PREF_EXPORT_OFFSET = "export_offset";
 
-    private Thread mExportThread;
+    private static final long EXPORT_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int BATCH_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private volatile boolean mIsExporting = false;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -69,33 +107,165 @@ public class ExportUpdateService extends Service {
             mIsExporting = true;
             File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
             Uri destination = intent.getParcelableExtra(EXTRA_DEST_URI);
-            startExporting(source, destination);
-            Toast.makeText(this, R.string.toast_export_started, Toast.LENGTH_SHORT).show();
+            Uri checksumDestination = intent.getParcelableExtra(EXTRA_CHECKSUM_URI);
+            // A redelivered intent always resumes what it had started
+            boolean resume = intent.getBooleanExtra(EXTRA_RESUME, false) ||
+                    (flags & START_FLAG_REDELIVERY) != 0;
+            long offset = resume ? getResumeOffset(this, source, destination) : 0;
+            if (offset > 0 && checksumDestination == null) {
+                checksumDestination = getCheckpointChecksumDestination();
+            }
+            startExporting(source, destination, checksumDestination, offset);
+            Toast.makeText(this, offset > 0 ? R.string.toast_export_resumed :
+                    R.string.toast_export_started, Toast.LENGTH_SHORT).show();
+        } else if (ACTION_START_BATCH_EXPORTING.equals(intent.getAction())) {
+            if (mIsExporting) {
+                Log.e(TAG, "Already exporting an update");
+                Toast.makeText(this, R.string.toast_already_exporting, Toast.LENGTH_SHORT).show();
+                return START_NOT_STICKY;
+            }
+            Uri destination = intent.getParcelableExtra(EXTRA_DEST_URI);
+            List<UpdateInfo> updates = getVerifiedUpdates(
+                    intent.getStringArrayExtra(EXTRA_DOWNLOAD_IDS));
+            if (updates.isEmpty()) {
+                Log.e(TAG, "No verified update to export");
+            } else {
+                mIsExporting = true;
+                startBatchExporting(updates, destination);
+                Toast.makeText(this, R.string.toast_export_started, Toast.LENGTH_SHORT).show();
+                // Archives are not resumable, don't start over if we get killed
+                return START_NOT_STICKY;
+            }
         } else {
             Log.e(TAG, "No action specified");
         }
 
         if (!mIsExporting) {
             stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        // If we get killed, the intent is redelivered and the export resumed
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Get the destination of an interrupted export of the given file, if it can be resumed.
+     *
+     * @return the destination uri, or null if there's nothing to resume
+     */
+    public static Uri getResumableExport(Context context, File source) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String destination = preferences.getString(PREF_EXPORT_DEST, null);
+        if (destination == null) {
+            return null;
+        }
+        Uri destUri = Uri.parse(destination);
+        if (getResumeOffset(context, source, destUri) <= 0) {
+            return null;
+        }
+        for (UriPermission permission :
+                context.getContentResolver().getPersistedUriPermissions()) {
+            if (permission.getUri().equals(destUri) && permission.isWritePermission()) {
+                return destUri;
+            }
         }
+        return null;
+    }
+
+    private static long getResumeOffset(Context context, File source, Uri destination) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (source.getAbsolutePath().equals(preferences.getString(PREF_EXPORT_SOURCE, null)) &&
+                destination.toString().equals(preferences.getString(PREF_EXPORT_DEST, null)) &&
+                source.length() == preferences.getLong(PREF_EXPORT_SOURCE_SIZE, -1) &&
+                source.lastModified() == preferences.getLong(PREF_EXPORT_SOURCE_MTIME, -1)) {
+            return preferences.getLong(PREF_EXPORT_OFFSET, 0);
+        }
+        return 0;
+    }
+
+    private void saveExportCheckpoint(File source, Uri destination, Uri checksumDestination,
+                                      long offset) {
+        // Use commit(), the checkpoint is useless if it's not on disk when we get killed
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putString(PREF_EXPORT_SOURCE, source.getAbsolutePath())
+                .putLong(PREF_EXPORT_SOURCE_SIZE, source.length())
+                .putLong(PREF_EXPORT_SOURCE_MTIME, source.lastModified())
+                .putString(PREF_EXPORT_DEST, destination.toString())
+                .putString(PREF_EXPORT_CHECKSUM_DEST, checksumDestination != null ?
+                        checksumDestination.toString() : null)
+                .putLong(PREF_EXPORT_OFFSET, offset)
+                .commit();
+    }
+
+    private Uri getCheckpointChecksumDestination() {
+        String checksumDestination = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_EXPORT_CHECKSUM_DEST, null);
+        return checksumDestination != null ? Uri.parse(checksumDestination) : null;
+    }
+
+    private List<UpdateInfo> getVerifiedUpdates(String[] downloadIds) {
+        List<UpdateInfo> updates = new ArrayList<>();
+        if (downloadIds == null) {
+            return updates;
+        }
+        UpdaterController controller = UpdaterController.getInstance(this);
+        for (String downloadId : downloadIds) {
+            UpdateInfo update = controller.getUpdate(downloadId);
+            if (update != null &&
+                    update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                    update.getFile() != null && update.getFile().exists()) {
+                updates.add(update);
+            } else {
+                Log.w(TAG, "Skipping " + downloadId + ", not verified");
+            }
+        }
+        return updates;
+    }
+
+    private void clearExportCheckpoint(Uri destination) {
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .remove(PREF_EXPORT_SOURCE)
+                .remove(PREF_EXPORT_SOURCE_SIZE)
+                .remove(PREF_EXPORT_SOURCE_MTIME)
+                .remove(PREF_EXPORT_DEST)
+                .remove(PREF_EXPORT_CHECKSUM_DEST)
+                .remove(PREF_EXPORT_OFFSET)
+                .apply();
+        releaseUriPermission(destination);
+    }
 
-        return START_NOT_STICKY;
+    private void releaseUriPermission(Uri uri) {
+        try {
+            getContentResolver().releasePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                            Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // We never took it
+        }
     }
 
     private class ExportRunnable implements Runnable {
         private final ContentResolver mContentResolver;
         private final File mSource;
         private final Uri mDestination;
+        private final Uri mChecksumDestination;
+        private final String mFileName;
+        private final long mOffset;
         private final FileUtils.ProgressCallBack mProgressCallBack;
         private final Runnable mRunnableComplete;
         private final Runnable mRunnableFailed;
 
         private ExportRunnable(ContentResolver cr, File source, Uri destination,
+                               Uri checksumDestination, String fileName, long offset,
                                FileUtils.ProgressCallBack progressCallBack,
                                Runnable runnableComplete, Runnable runnableFailed) {
             mContentResolver = cr;
             mSource = source;
             mDestination = destination;
+            mChecksumDestination = checksumDestination;
+            mFileName = fileName;
+            mOffset = offset;
             mProgressCallBack = progressCallBack;
             mRunnableComplete = runnableComplete;
             mRunnableFailed = runnableFailed;
@@ -104,15 +274,28 @@ public class ExportUpdateService extends Service {
         @Override
         public void run() {
             try {
-                FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
+                if (mOffset > 0) {
+                    Log.d(TAG, "Resuming export from " + mOffset);
+                }
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                FileUtils.copyFileChunked(mContentResolver, mSource, mDestination, mOffset,
+                        EXPORT_CHUNK_SIZE, digest,
+                        offset -> saveExportCheckpoint(mSource, mDestination,
+                                mChecksumDestination, offset),
+                        mProgressCallBack);
                 mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    // The export is complete, whatever happens to the checksum
+                    clearExportCheckpoint(mDestination);
+                    if (mChecksumDestination != null) {
+                        writeChecksum(digest.digest());
+                    }
                     Log.d(TAG, "Completed");
                     mRunnableComplete.run();
                 } else {
                     Log.d(TAG, "Aborted");
                 }
-            } catch (IOException e) {
+            } catch (IOException | NoSuchAlgorithmException e) {
                 mIsExporting = false;
                 Log.e(TAG, "Could not copy file", e);
                 mRunnableFailed.run();
@@ -120,10 +303,137 @@ public class ExportUpdateService extends Service {
                 stopSelf();
             }
         }
+
+        private void writeChecksum(byte[] digest) {
+            String name = mFileName != null ? mFileName : mSource.getName();
+            try {
+                FileUtils.writeSha256File(mContentResolver, mChecksumDestination, name, digest);
+                Log.d(TAG, "Checksum written to " + mChecksumDestination);
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Could not write the checksum to " + mChecksumDestination, e);
+            } finally {
+                releaseUriPermission(mChecksumDestination);
+            }
+        }
+    }
+
+    private class BatchExportRunnable implements Runnable {
+        private final ContentResolver mContentResolver;
+        private final List<UpdateInfo> mUpdates;
+        private final Uri mDestination;
+        private final FileUtils.ProgressCallBack mProgressCallBack;
+        private final Runnable mRunnableComplete;
+        private final Runnable mRunnableFailed;
+
+        private BatchExportRunnable(ContentResolver cr, List<UpdateInfo> updates,
+                                    Uri destination,
+                                    FileUtils.ProgressCallBack progressCallBack,
+                                    Runnable runnableComplete, Runnable runnableFailed) {
+            mContentResolver = cr;
+            mUpdates = updates;
+            mDestination = destination;
+            mProgressCallBack = progressCallBack;
+            mRunnableComplete = runnableComplete;
+            mRunnableFailed = runnableFailed;
+        }
+
+        @Override
+        public void run() {
+            // Truncate, "w" leaves the end of a longer file that was there before
+            try (ParcelFileDescriptor pfd =
+                         mContentResolver.openFileDescriptor(mDestination, "wt");
+                 FileChannel destChannel =
+                         new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
+                TarWriter tarWriter = new TarWriter(destChannel);
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+                JSONArray entries = new JSONArray();
+
+                long totalBytes = 0;
+                for (UpdateInfo update : mUpdates) {
+                    totalBytes += update.getFile().length();
+                }
+                long bytesWritten = 0;
+                int lastProgress = -1;
+
+                for (UpdateInfo update : mUpdates) {
+                    File file = update.getFile();
+                    try (FileChannel sourceChannel = new FileInputStream(file).getChannel()) {
+                        long size = sourceChannel.size();
+                        tarWriter.putEntry(file.getName(), size, file.lastModified());
+                        while (sourceChannel.read(buffer) > 0) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                Log.d(TAG, "Aborted");
+                                return;
+                            }
+                            buffer.flip();
+                            bytesWritten += buffer.remaining();
+                            digest.update(buffer);
+                            buffer.rewind();
+                            tarWriter.write(buffer);
+                            buffer.clear();
+
+                            int progress = Math.round(bytesWritten * 100.f / totalBytes);
+                            if (progress != lastProgress) {
+                                mProgressCallBack.update(progress);
+                                lastProgress = progress;
+                            }
+                        }
+                        tarWriter.closeEntry();
+                    }
+                    entries.put(new JSONObject()
+                            .put("filename", file.getName())
+                            .put("id", update.getDownloadId())
+                            .put("version", update.getVersion())
+                            .put("timestamp", update.getTimestamp())
+                            .put("size", file.length())
+                            .put("sha256", FileUtils.toHexString(digest.digest())));
+                }
+
+                byte[] manifest = new JSONObject()
+                        .put("updates", entries)
+                        .toString(2)
+                        .getBytes(StandardCharsets.UTF_8);
+                tarWriter.putEntry(BATCH_MANIFEST_NAME, manifest.length,
+                        System.currentTimeMillis());
+                tarWriter.write(ByteBuffer.wrap(manifest));
+                tarWriter.finish();
+                destChannel.force(false);
+
+                Log.d(TAG, "Completed, exported " + mUpdates.size() + " updates");
+                mRunnableComplete.run();
+            } catch (IOException | JSONException | NoSuchAlgorithmException e) {
+                Log.e(TAG, "Could not export updates", e);
+                mRunnableFailed.run();
+            } finally {
+                mIsExporting = false;
+                stopSelf();
+            }
+        }
+    }
+
+    private interface ExportRunnableFactory {
+        Runnable create(FileUtils.ProgressCallBack progressCallBack,
+                        Runnable runnableComplete, Runnable runnableFailed);
     }
 
-    private void startExporting(File source, Uri destination) {
+    private void startExporting(File source, Uri destination, Uri checksumDestination,
+                                long offset) {
         final String fileName = FileUtils.queryName(getContentResolver(), destination);
+        startExporting(fileName, (progressCallBack, runnableComplete, runnableFailed) ->
+                new ExportRunnable(getContentResolver(), source, destination,
+                        checksumDestination, fileName, offset, progressCallBack,
+                        runnableComplete, runnableFailed));
+    }
+
+    private void startBatchExporting(List<UpdateInfo> updates, Uri destination) {
+        final String fileName = FileUtils.queryName(getContentResolver(), destination);
+        startExporting(fileName, (progressCallBack, runnableComplete, runnableFailed) ->
+                new BatchExportRunnable(getContentResolver(), updates, destination,
+                        progressCallBack, runnableComplete, runnableFailed));
+    }
+
+    private void startExporting(final String fileName, ExportRunnableFactory factory) {
         NotificationManager notificationManager = getSystemService(NotificationManager.class);
         NotificationChannel notificationChannel = new NotificationChannel(
                 EXPORT_NOTIFICATION_CHANNEL,
@@ -185,9 +495,7 @@ public class ExportUpdateService extends Service {
             stopForeground(STOP_FOREGROUND_DETACH);
         };
 
-        ExportRunnable exportRunnable = new ExportRunnable(getContentResolver(), source,
-                destination, progressCallBack, runnableComplete, runnableFailed);
-        mExportThread = new Thread(exportRunnable);
-        mExportThread.start();
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Pool.IO,
+                factory.create(progressCallBack, runnableComplete, runnableFailed));
     }
 }
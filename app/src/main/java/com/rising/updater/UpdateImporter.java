@@ -26,6 +26,9 @@ import android.util.Log;
 import org.json.JSONException;
 import com.rising.updater.controller.UpdaterController;
 import com.rising.updater.controller.UpdaterService;
+import com.rising.updater.misc.BackgroundExecutor;
+import com.rising.updater.misc.FileUtils;
+import com.rising.updater.misc.PackageVerifier;
 import com.rising.updater.misc.StringGenerator;
 import com.rising.updater.misc.Utils;
 import com.rising.updater.model.Update;
@@ -39,6 +42,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.util.Enumeration;
 import java.util.List;
@@ -56,7 +61,7 @@ public class UpdateImporter {
     private final Activity activity;
     private final Callbacks callbacks;
 
-    private Thread workingThread;
+    private BackgroundExecutor.Task workingTask;
 
     public UpdateImporter(Activity activity, Callbacks callbacks) {
         this.activity = activity;
@@ -64,9 +69,9 @@ public class UpdateImporter {
     }
 
     public void stopImport() {
-        if (workingThread != null && workingThread.isAlive()) {
-            workingThread.interrupt();
-            workingThread = null;
+        if (workingTask != null && !workingTask.isDone()) {
+            workingTask.cancel();
+            workingTask = null;
         }
     }
 
@@ -89,11 +94,15 @@ public class UpdateImporter {
     private boolean onPicked(Uri uri) {
         callbacks.onImportStarted();
 
-        workingThread = new Thread(() -> {
+        workingTask = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Pool.IO, () -> {
             File importedFile = null;
             try {
-                importedFile = importFile(uri);
-                verifyPackage(importedFile);
+                importedFile = new File(Utils.getDownloadPath(activity), FILE_NAME);
+                // An identical package that's already stored isn't copied nor verified again
+                if (!linkStoredPackage(uri, importedFile)) {
+                    importFile(uri, importedFile);
+                    verifyPackage(importedFile);
+                }
 
                 final Update update = buildLocalUpdate(importedFile);
                 addUpdate(update);
@@ -108,13 +117,46 @@ public class UpdateImporter {
                 activity.runOnUiThread(() -> callbacks.onImportCompleted(null));
             }
         });
-        workingThread.start();
         return true;
     }
 
+    /**
+     * Link the given file to a verified package identical to the picked one, if any.
+     * Only packages of the same size as a verified one are read to compare digests.
+     *
+     * @return whether the file is now a verified package
+     */
+    private boolean linkStoredPackage(Uri uri, File file) {
+        final UpdaterController controller = UpdaterController.getInstance(activity);
+        try {
+            final ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
+                    .openFileDescriptor(uri, "r");
+            if (parcelDescriptor == null) {
+                return false;
+            }
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream iStream =
+                    new ParcelFileDescriptor.AutoCloseInputStream(parcelDescriptor)) {
+                // The size is unknown for pipes
+                if (!controller.hasVerifiedPackage(parcelDescriptor.getStatSize())) {
+                    return false;
+                }
+                int read;
+                final byte[] buffer = new byte[64 * 1024];
+                while ((read = iStream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return controller.linkVerifiedPackage(file, FileUtils.toHexString(digest.digest()));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.e(TAG, "Could not look for a stored copy of the package", e);
+            return false;
+        }
+    }
+
     @SuppressLint("SetWorldReadable")
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File importFile(Uri uri) throws IOException {
+    private void importFile(Uri uri, File outFile) throws IOException {
         final ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
                 .openFileDescriptor(uri, "r");
         if (parcelDescriptor == null) {
@@ -123,8 +165,6 @@ public class UpdateImporter {
 
         final FileInputStream iStream = new FileInputStream(parcelDescriptor
                 .getFileDescriptor());
-        final File downloadDir = Utils.getDownloadPath(activity);
-        final File outFile = new File(downloadDir, FILE_NAME);
         if (outFile.exists()) {
             outFile.delete();
         }
@@ -141,8 +181,6 @@ public class UpdateImporter {
         parcelDescriptor.close();
 
         outFile.setReadable(true, false);
-
-        return outFile;
     }
 
     private Update buildLocalUpdate(File file) {
@@ -166,7 +204,9 @@ public class UpdateImporter {
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void verifyPackage(File file) throws Exception {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            byte[] digest = PackageVerifier.verify(file, null, null,
+                    BackgroundExecutor.getInstance());
+            UpdaterController.getInstance(activity).addVerifiedPackage(file, digest);
         } catch (Exception e) {
             if (file.exists()) {
                 file.delete();
@@ -33,6 +33,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.SystemProperties;
+import android.provider.DocumentsContract;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.HapticFeedbackConstants;
@@ -74,11 +75,13 @@ import com.google.android.material.progressindicator.CircularProgressIndicator;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.json.JSONException;
+import com.rising.updater.controller.ProgressEventBus;
 import com.rising.updater.controller.UpdaterController;
 import com.rising.updater.controller.UpdaterService;
 import com.rising.updater.download.DownloadClient;
 import com.rising.updater.misc.BuildInfoUtils;
 import com.rising.updater.misc.Constants;
+import com.rising.updater.misc.FileUtils;
 import com.rising.updater.misc.StringGenerator;
 import com.rising.updater.misc.Utils;
 import com.rising.updater.model.Update;
@@ -88,7 +91,9 @@ import com.rising.updater.model.UpdateStatus;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class UpdatesActivity extends UpdatesListActivity implements UpdateImporter.Callbacks {
@@ -96,8 +101,11 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     private static final String TAG = "UpdatesActivity";
     private UpdaterService mUpdaterService;
     private BroadcastReceiver mBroadcastReceiver;
+    private ProgressEventBus.Listener mProgressListener;
 
     private UpdatesListAdapter mAdapter;
+    // Revision of the updates as last shown, to skip progress broadcasts that change nothing
+    private final Map<String, Long> mShownRevisions = new HashMap<>();
 
     private View mRefreshIconView;
     private RotateAnimation mRefreshAnimation;
@@ -105,6 +113,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     private boolean mIsTV;
 
     private UpdateInfo mToBeExported = null;
+    private Uri mExportDestination = null;
+    private String[] mToBeBatchExported = null;
 
     private CircularProgressIndicator progressDownload;
     private CircularProgressIndicator progressLocalUpdate;
@@ -118,12 +128,39 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     Intent intent = result.getData();
                     if (intent != null) {
                         Uri uri = intent.getData();
-                        exportUpdate(uri);
+                        // Keep access to the destination so that the export can be resumed
+                        takePersistableUriPermission(uri);
+                        mExportDestination = uri;
+                        pickChecksumDestination(uri);
+                    }
+                }
+            });
+
+    // The checksum file is optional, the export goes on without it if none is picked
+    private final ActivityResultLauncher<Intent> mExportChecksum = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                Uri checksumUri = null;
+                if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
+                    checksumUri = result.getData().getData();
+                    takePersistableUriPermission(checksumUri);
+                }
+                exportUpdate(mExportDestination, checksumUri, false);
+            });
+
+    private final ActivityResultLauncher<Intent> mExportUpdates = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                if (result.getResultCode() == Activity.RESULT_OK) {
+                    Intent intent = result.getData();
+                    if (intent != null) {
+                        exportUpdates(intent.getData());
                     }
                 }
             });
 
     private UpdateImporter mUpdateImporter;
+    private boolean mReportedFullyDrawn;
     @SuppressWarnings("deprecation")
     private ProgressDialog importDialog;
 
@@ -159,24 +196,35 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                 UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
                 if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    handleDownloadStatusChange(downloadId);
-                    mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    if (update != null) {
-                        mAdapter.notifyItemChanged(downloadId);
-                        updateDownloadProgress(progressDownload, update);
-                    }
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     if (update != null) {
-                        mAdapter.notifyItemChanged(downloadId);
-                        updateInstallProgress(progressLocalUpdate, update);
+                        mShownRevisions.put(downloadId, update.getRevision());
                     }
+                    handleDownloadStatusChange(downloadId);
+                    mAdapter.notifyItemChanged(downloadId);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
+                    mShownRevisions.remove(downloadId);
                     mAdapter.removeItem(downloadId);
                 }
             }
         };
 
+        // Called once per frame at most, right before drawing
+        mProgressListener = (type, downloadId) -> {
+            if (mUpdaterService == null) {
+                return;
+            }
+            UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
+            if (!isNewRevision(update)) {
+                return;
+            }
+            mAdapter.renderProgress(downloadId);
+            if (type == ProgressEventBus.Type.DOWNLOAD) {
+                updateDownloadProgress(progressDownload, update);
+            } else if (type == ProgressEventBus.Type.INSTALL) {
+                updateInstallProgress(progressLocalUpdate, update);
+            }
+        };
+
         if (!mIsTV) {
             Toolbar toolbar = findViewById(R.id.toolbar);
             setSupportActionBar(toolbar);
@@ -294,10 +342,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        ProgressEventBus.getInstance().register(mProgressListener);
     }
 
     @Override
@@ -348,6 +395,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
     @Override
     public void onStop() {
+        ProgressEventBus.getInstance().unregister(mProgressListener);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
             unbindService(mConnection);
@@ -367,6 +415,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         if (itemId == R.id.menu_preferences) {
             showPreferencesDialog();
             return true;
+        } else if (itemId == R.id.menu_export_all_updates) {
+            exportAllUpdates();
+            return true;
         } else if (itemId == R.id.menu_show_changelog) {
             Intent openUrl = new Intent(Intent.ACTION_VIEW,
                     Uri.parse(Utils.getChangelogURL(this)));
@@ -468,8 +519,20 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
-            getUpdatesList();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            mAdapter.setUpdaterController(controller);
+            if (controller.isLoaded()) {
+                getUpdatesList();
+                return;
+            }
+            // Let the downloads of previous runs load before adding those online
+            refreshAnimationStart();
+            controller.runWhenLoaded(() -> {
+                refreshAnimationStop();
+                if (mUpdaterService != null) {
+                    getUpdatesList();
+                }
+            });
         }
 
         @Override
@@ -519,7 +582,11 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 updateIds.add(update.getDownloadId());
             }
             mAdapter.setData(updateIds);
-            mAdapter.notifyDataSetChanged();
+        }
+        if (!mReportedFullyDrawn) {
+            // Measures the time to a usable list since the launch of the activity
+            mReportedFullyDrawn = true;
+            reportFullyDrawn();
         }
     }
 
@@ -791,6 +858,10 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 hideProgressBars();
                 break;
+            case PAUSED_NO_SPACE:
+                showSnackbar(R.string.snack_download_no_space, Snackbar.LENGTH_LONG);
+                hideProgressBars();
+                break;
             case VERIFICATION_FAILED:
                 showSnackbar(R.string.snack_download_verification_failed, Snackbar.LENGTH_LONG);
                 hideProgressBars();
@@ -808,6 +879,22 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     public void exportUpdate(UpdateInfo update) {
         mToBeExported = update;
 
+        Uri pendingExport = ExportUpdateService.getResumableExport(this, update.getFile());
+        if (pendingExport != null) {
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.dialog_export_resume_title)
+                    .setMessage(R.string.dialog_export_resume_message)
+                    .setPositiveButton(R.string.action_resume,
+                            (dialog, which) -> exportUpdate(pendingExport, true))
+                    .setNegativeButton(R.string.dialog_export_resume_new_destination,
+                            (dialog, which) -> pickExportDestination(update))
+                    .show();
+            return;
+        }
+        pickExportDestination(update);
+    }
+
+    private void pickExportDestination(UpdateInfo update) {
         Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("application/zip");
@@ -816,11 +903,76 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         mExportUpdate.launch(intent);
     }
 
-    private void exportUpdate(Uri uri) {
+    /**
+     * Let the user pick where to write the checksum file, next to the export by default.
+     */
+    private void pickChecksumDestination(Uri exportUri) {
+        String name = FileUtils.queryName(getContentResolver(), exportUri);
+        if (name == null) {
+            name = mToBeExported.getName();
+        }
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TITLE, name + FileUtils.SHA256_FILE_EXT);
+        intent.putExtra(DocumentsContract.EXTRA_INITIAL_URI, exportUri);
+
+        mExportChecksum.launch(intent);
+    }
+
+    private void takePersistableUriPermission(Uri uri) {
+        try {
+            getContentResolver().takePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                            Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Could not persist permission for " + uri);
+        }
+    }
+
+    private void exportUpdate(Uri uri, boolean resume) {
+        exportUpdate(uri, null, resume);
+    }
+
+    private void exportUpdate(Uri uri, Uri checksumUri, boolean resume) {
         Intent intent = new Intent(this, ExportUpdateService.class);
         intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
         intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, mToBeExported.getFile());
         intent.putExtra(ExportUpdateService.EXTRA_DEST_URI, uri);
+        intent.putExtra(ExportUpdateService.EXTRA_CHECKSUM_URI, checksumUri);
+        intent.putExtra(ExportUpdateService.EXTRA_RESUME, resume);
+        startService(intent);
+    }
+
+    private void exportAllUpdates() {
+        if (mUpdaterService == null) {
+            return;
+        }
+        List<String> downloadIds = new ArrayList<>();
+        for (UpdateInfo update : mUpdaterService.getUpdaterController().getUpdates()) {
+            if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED) {
+                downloadIds.add(update.getDownloadId());
+            }
+        }
+        if (downloadIds.isEmpty()) {
+            showSnackbar(R.string.snack_no_verified_updates, Snackbar.LENGTH_SHORT);
+            return;
+        }
+        mToBeBatchExported = downloadIds.toArray(new String[0]);
+
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/x-tar");
+        intent.putExtra(Intent.EXTRA_TITLE, getString(R.string.export_archive_name));
+
+        mExportUpdates.launch(intent);
+    }
+
+    private void exportUpdates(Uri uri) {
+        Intent intent = new Intent(this, ExportUpdateService.class);
+        intent.setAction(ExportUpdateService.ACTION_START_BATCH_EXPORTING);
+        intent.putExtra(ExportUpdateService.EXTRA_DOWNLOAD_IDS, mToBeBatchExported);
+        intent.putExtra(ExportUpdateService.EXTRA_DEST_URI, uri);
         startService(intent);
     }
 
@@ -876,6 +1028,14 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     }
 
+    private boolean isNewRevision(UpdateInfo update) {
+        if (update == null) {
+            return false;
+        }
+        Long shownRevision = mShownRevisions.put(update.getDownloadId(), update.getRevision());
+        return shownRevision == null || shownRevision != update.getRevision();
+    }
+
     private void updateDownloadProgress(CircularProgressIndicator progressDownload, UpdateInfo update) {
         int progress = update.getProgress();
         runOnUiThread(() -> {
@@ -920,6 +1080,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 R.id.preferences_metered_network_warning);
         SwitchCompat abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
         SwitchCompat updateRecovery = view.findViewById(R.id.preferences_update_recovery);
+        SwitchCompat peerSharing = view.findViewById(R.id.preferences_peer_sharing);
 
         if (!Utils.isABDevice()) {
             abPerfMode.setVisibility(View.GONE);
@@ -931,6 +1092,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         meteredNetworkWarning.setChecked(prefs.getBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                 prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true)));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
+        peerSharing.setChecked(prefs.getBoolean(Constants.PREF_PEER_SHARING, false));
 
         if (getResources().getBoolean(R.bool.config_hideRecoveryUpdate)) {
             // Hide the update feature if explicitly requested.
@@ -971,6 +1133,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                             .putBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                                     meteredNetworkWarning.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE, abPerfMode.isChecked())
+                            .putBoolean(Constants.PREF_PEER_SHARING, peerSharing.isChecked())
                             .apply();
 
                     if (Utils.isUpdateCheckEnabled(this)) {
@@ -984,6 +1147,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                         boolean enableABPerfMode = abPerfMode.isChecked();
                         mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
                     }
+                    mUpdaterService.getUpdaterController().setPeerSharing(
+                            peerSharing.isChecked());
                     if (Utils.isRecoveryUpdateExecPresent()) {
                         boolean enableRecoveryUpdate = updateRecovery.isChecked();
                         SystemProperties.set(Constants.UPDATE_RECOVERY_PROPERTY,
@@ -18,19 +18,30 @@ package com.rising.updater;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
 
+import com.rising.updater.misc.FileUtils;
+import com.rising.updater.model.DownloadState;
 import com.rising.updater.model.Update;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String TAG = "UpdatesDbHelper";
+
+    public static final int DATABASE_VERSION = 3;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +53,19 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_DOWNLOADED_BYTES = "downloaded_bytes";
+        public static final String COLUMN_NAME_VALIDATOR = "validator";
+        public static final String COLUMN_NAME_MIRROR_URL = "mirror_url";
+        public static final String COLUMN_NAME_SPEED = "speed";
+    }
+
+    public static class VerificationEntry implements BaseColumns {
+        public static final String TABLE_NAME = "verifications";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_MTIME = "mtime";
+        public static final String COLUMN_NAME_INODE = "inode";
+        public static final String COLUMN_NAME_DIGEST = "digest";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,26 +77,96 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_VALIDATOR + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_MIRROR_URL + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_SPEED + " INTEGER)";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
+    private static final String SQL_CREATE_VERIFICATIONS =
+            "CREATE TABLE IF NOT EXISTS " + VerificationEntry.TABLE_NAME + " (" +
+                    VerificationEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerificationEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    VerificationEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_MTIME + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_DIGEST + " TEXT)";
+
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /*
+     * Steps to upgrade the database, MIGRATIONS[i] upgrades version i + 1 to i + 2.
+     * Steps must keep the existing rows. New columns must be nullable or have a
+     * default value, so that older versions can still insert rows after a downgrade.
+     * Since a downgrade keeps the newer schema, steps must also work if they already
+     * ran once.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // 1 -> 2: cache of the verified packages
+            db -> db.execSQL(SQL_CREATE_VERIFICATIONS),
+            // 2 -> 3: state of the incomplete downloads
+            db -> {
+                addColumn(db, UpdateEntry.TABLE_NAME,
+                        UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, "INTEGER");
+                addColumn(db, UpdateEntry.TABLE_NAME,
+                        UpdateEntry.COLUMN_NAME_VALIDATOR, "TEXT");
+                addColumn(db, UpdateEntry.TABLE_NAME,
+                        UpdateEntry.COLUMN_NAME_MIRROR_URL, "TEXT");
+                addColumn(db, UpdateEntry.TABLE_NAME,
+                        UpdateEntry.COLUMN_NAME_SPEED, "INTEGER");
+            },
+    };
+
+    private static void addColumn(SQLiteDatabase db, String table, String column,
+            String type) {
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return;
+                }
+            }
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
 
     public UpdatesDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name the name of the database file, null for an in-memory database
+     */
+    public UpdatesDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // Commits only append to the log, readers don't wait for writers
+        setWriteAheadLoggingEnabled(true);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_VERIFICATIONS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // Called in a transaction, if a step throws the whole upgrade is rolled back
+        // and the database keeps its version, rows and schema. Opening it fails until
+        // a later attempt succeeds, which is better than losing the downloads.
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (version < 1 || version > MIGRATIONS.length) {
+                throw new SQLException("No migration from version " + version);
+            }
+            Log.d(TAG, "Migrating database from version " + version);
+            MIGRATIONS[version - 1].migrate(db);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        // Newer versions only add tables and columns the queries here don't use,
+        // keep the data so that the downloads survive a rollback of the app
+        Log.w(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion);
     }
 
     public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
@@ -100,9 +194,13 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public void changeUpdateStatus(Update update) {
+        changeUpdateStatus(update.getDownloadId(), update.getPersistentStatus());
+    }
+
+    public void changeUpdateStatus(String downloadId, int status) {
         String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {update.getDownloadId()};
-        changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
+        String[] selectionArgs = {downloadId};
+        changeUpdateStatus(selection, selectionArgs, status);
     }
 
     private void changeUpdateStatus(String selection, String[] selectionArgs,
@@ -113,6 +211,55 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
     }
 
+    /**
+     * Store the state of an incomplete download.
+     *
+     * @param state the state, null to forget it
+     */
+    public void changeDownloadState(String downloadId, DownloadState state) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        if (state != null) {
+            values.put(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, state.getDownloadedBytes());
+            values.put(UpdateEntry.COLUMN_NAME_VALIDATOR, state.getValidator());
+            values.put(UpdateEntry.COLUMN_NAME_MIRROR_URL, state.getMirrorUrl());
+            values.put(UpdateEntry.COLUMN_NAME_SPEED, state.getSpeed());
+        } else {
+            values.putNull(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES);
+            values.putNull(UpdateEntry.COLUMN_NAME_VALIDATOR);
+            values.putNull(UpdateEntry.COLUMN_NAME_MIRROR_URL);
+            values.putNull(UpdateEntry.COLUMN_NAME_SPEED);
+        }
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
+    }
+
+    /**
+     * @return the stored states of the incomplete downloads, by download id
+     */
+    public Map<String, DownloadState> getDownloadStates() {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
+                UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES,
+                UpdateEntry.COLUMN_NAME_VALIDATOR,
+                UpdateEntry.COLUMN_NAME_MIRROR_URL,
+                UpdateEntry.COLUMN_NAME_SPEED,
+        };
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES + " IS NOT NULL";
+        Map<String, DownloadState> states = new HashMap<>();
+        try (Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, null,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                states.put(cursor.getString(0), new DownloadState(cursor.getLong(1),
+                        cursor.getString(2), cursor.getString(3),
+                        cursor.isNull(4) ? -1 : cursor.getLong(4)));
+            }
+        }
+        return states;
+    }
+
     public List<Update> getUpdates() {
         return getUpdates(null, null);
     }
@@ -156,4 +303,121 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         }
         return updates;
     }
+
+    /**
+     * Remember that the given file passed verification. The entry is only valid as
+     * long as the file isn't replaced or modified.
+     */
+    public void addVerifiedPackage(File file, byte[] digest) {
+        addVerifiedPackage(file, FileUtils.toHexString(digest));
+    }
+
+    /**
+     * @param digest the SHA-256 digest of the file, as returned by getVerifiedDigest
+     */
+    public void addVerifiedPackage(File file, String digest) {
+        StructStat stat;
+        try {
+            stat = Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not stat " + file, e);
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(VerificationEntry.COLUMN_NAME_PATH, file.getAbsolutePath());
+        values.put(VerificationEntry.COLUMN_NAME_SIZE, stat.st_size);
+        values.put(VerificationEntry.COLUMN_NAME_MTIME, file.lastModified());
+        values.put(VerificationEntry.COLUMN_NAME_INODE, stat.st_ino);
+        values.put(VerificationEntry.COLUMN_NAME_DIGEST, digest);
+        db.insertWithOnConflict(VerificationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the SHA-256 digest of the given file if it already passed verification
+     *         and wasn't changed since, null otherwise
+     */
+    public String getVerifiedDigest(File file) {
+        StructStat stat;
+        try {
+            stat = Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {VerificationEntry.COLUMN_NAME_DIGEST};
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_SIZE + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_MTIME + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_INODE + " = ?";
+        String[] selectionArgs = {
+                file.getAbsolutePath(),
+                String.valueOf(stat.st_size),
+                String.valueOf(file.lastModified()),
+                String.valueOf(stat.st_ino),
+        };
+        try (Cursor cursor = db.query(VerificationEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * @param digest the SHA-256 digest of a package
+     * @param exclude a file to ignore
+     * @return a verified package with the given digest that wasn't changed since it
+     *         was verified, null if there's none
+     */
+    public File findVerifiedPackage(String digest, File exclude) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                VerificationEntry.COLUMN_NAME_PATH,
+                VerificationEntry.COLUMN_NAME_SIZE,
+                VerificationEntry.COLUMN_NAME_MTIME,
+                VerificationEntry.COLUMN_NAME_INODE,
+        };
+        String selection = VerificationEntry.COLUMN_NAME_DIGEST + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_PATH + " != ?";
+        String[] selectionArgs = {digest, exclude.getAbsolutePath()};
+        try (Cursor cursor = db.query(VerificationEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                File file = new File(cursor.getString(0));
+                try {
+                    StructStat stat = Os.stat(file.getAbsolutePath());
+                    if (stat.st_size == cursor.getLong(1) &&
+                            file.lastModified() == cursor.getLong(2) &&
+                            stat.st_ino == cursor.getLong(3)) {
+                        return file;
+                    }
+                } catch (ErrnoException e) {
+                    // Deleted since
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a package of the given size passed verification, in which case
+     *         a new package of that size may be identical to it
+     */
+    public boolean hasVerifiedPackage(long size) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {VerificationEntry._ID};
+        String selection = VerificationEntry.COLUMN_NAME_SIZE + " = ?";
+        String[] selectionArgs = {String.valueOf(size)};
+        try (Cursor cursor = db.query(VerificationEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null, "1")) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    public void removeVerifiedPackage(File file) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ?";
+        String[] selectionArgs = {file.getAbsolutePath()};
+        db.delete(VerificationEntry.TABLE_NAME, selection, selectionArgs);
+    }
 }
@@ -49,6 +49,8 @@ import androidx.appcompat.view.menu.MenuBuilder;
 import androidx.appcompat.view.menu.MenuPopupHelper;
 import androidx.appcompat.widget.PopupMenu;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
@@ -68,7 +70,10 @@ import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.ViewHolder> {
@@ -79,11 +84,20 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             | BatteryManager.BATTERY_PLUGGED_USB
             | BatteryManager.BATTERY_PLUGGED_WIRELESS;
 
+    // Rebind only the views showing the progress
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
     private final float mAlphaDisabledValue;
 
-    private List<String> mDownloadIds;
+    // The lists are compared in the background, the shown list only changes once done
+    private final AsyncListDiffer<String> mDiffer;
+    private final Map<String, Integer> mPositions = new HashMap<>();
+    private final Map<String, Long> mItemIds = new HashMap<>();
+    // Revision of the update each item was last bound with
+    private final Map<String, Long> mBoundRevisions = new ConcurrentHashMap<>();
     private String mSelectedDownload;
     private UpdaterController mUpdaterController;
+    private RecyclerView mRecyclerView;
     private final UpdatesListActivity mActivity;
 
     private AlertDialog infoDialog;
@@ -112,6 +126,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         private final TextView mProgressText;
         private final TextView mPercentage;
 
+        // Status of the last full bind, progress binds don't change the rest of the item
+        private UpdateStatus mBoundStatus;
+
         public ViewHolder(final View view) {
             super(view);
             mAction = view.findViewById(R.id.update_action);
@@ -134,6 +151,31 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         TypedValue tv = new TypedValue();
         mActivity.getTheme().resolveAttribute(android.R.attr.disabledAlpha, tv, true);
         mAlphaDisabledValue = tv.getFloat();
+
+        mDiffer = new AsyncListDiffer<>(this, new DiffUtil.ItemCallback<String>() {
+            @Override
+            public boolean areItemsTheSame(@NonNull String oldId, @NonNull String newId) {
+                return oldId.equals(newId);
+            }
+
+            @Override
+            public boolean areContentsTheSame(@NonNull String oldId, @NonNull String newId) {
+                UpdaterController controller = mUpdaterController;
+                UpdateInfo update = controller != null ? controller.getUpdate(newId) : null;
+                Long boundRevision = mBoundRevisions.get(newId);
+                return update != null && boundRevision != null &&
+                        boundRevision == update.getRevision();
+            }
+        });
+        mDiffer.addListListener(this::onCurrentListChanged);
+        setHasStableIds(true);
+    }
+
+    private void onCurrentListChanged(List<String> previousList, List<String> currentList) {
+        mPositions.clear();
+        for (int i = 0; i < currentList.size(); i++) {
+            mPositions.put(currentList.get(i), i);
+        }
     }
 
     @NonNull
@@ -144,6 +186,18 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         return new ViewHolder(view);
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mRecyclerView = null;
+    }
+
     @Override
     public void onViewDetachedFromWindow(@NonNull ViewHolder holder) {
         super.onViewDetachedFromWindow(holder);
@@ -164,8 +218,34 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isDownloading(downloadId)) {
             canDelete = true;
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
+        } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
+            saveUpdateState(downloadId, UpdateStatus.INSTALLING);
+            setButtonAction(viewHolder.mAction, Action.CANCEL_INSTALLATION, downloadId, true);
+        } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
+            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
+        } else {
+            canDelete = true;
+            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
+        }
+        bindProgress(viewHolder, update);
+
+        viewHolder.mMenu.setOnClickListener(getClickListener(update, canDelete, viewHolder.mMenu));
+        viewHolder.mProgress.setVisibility(View.VISIBLE);
+        viewHolder.mProgressText.setVisibility(View.VISIBLE);
+        viewHolder.mBuildSize.setVisibility(View.INVISIBLE);
+    }
+
+    private void bindProgress(ViewHolder viewHolder, UpdateInfo update) {
+        final String downloadId = update.getDownloadId();
+        if (update.getStatus() == viewHolder.mBoundStatus) {
+            // Nothing else to show for this revision, a diff doesn't need to bind it again
+            mBoundRevisions.put(downloadId, update.getRevision());
+        }
+        if (mUpdaterController.isDownloading(downloadId)) {
+            // The file is allocated up front, its length is already the final one
             String downloaded = Formatter.formatShortFileSize(mActivity,
-                    update.getFile().length());
+                    update.getFileSize() * update.getProgress() / 100);
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -179,12 +259,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 viewHolder.mProgressText.setText(mActivity.getString(
                         R.string.list_download_progress_newer, downloaded, total));
             }
-            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
             viewHolder.mProgressBar.setIndeterminate(update.getStatus() == UpdateStatus.STARTING);
             viewHolder.mProgressBar.setProgress(update.getProgress());
         } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
-            saveUpdateState(downloadId, UpdateStatus.INSTALLING);
-            setButtonAction(viewHolder.mAction, Action.CANCEL_INSTALLATION, downloadId, true);
             boolean notAB = !mUpdaterController.isInstallingABUpdate();
             viewHolder.mProgressText.setText(notAB ? R.string.dialog_prepare_zip_message :
                     update.getFinalizing() ?
@@ -196,12 +273,20 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mProgressBar.setIndeterminate(false);
             viewHolder.mProgressBar.setProgress(update.getInstallProgress());
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
-            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
-            viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            int progress = update.getVerificationProgress();
+            long eta = update.getVerificationEta();
+            if (eta > 0) {
+                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+                viewHolder.mProgressText.setText(mActivity.getString(
+                        R.string.list_verifying_update_eta, etaString));
+            } else {
+                viewHolder.mProgressText.setText(R.string.list_verifying_update);
+            }
+            viewHolder.mPercentage.setText(NumberFormat.getPercentInstance().format(
+                    progress / 100.f));
+            viewHolder.mProgressBar.setIndeterminate(progress == 0);
+            viewHolder.mProgressBar.setProgress(progress);
         } else {
-            canDelete = true;
-            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
             String downloaded = Formatter.formatShortFileSize(mActivity,
                     update.getFile().length());
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
@@ -213,11 +298,6 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mProgressBar.setIndeterminate(false);
             viewHolder.mProgressBar.setProgress(update.getProgress());
         }
-
-        viewHolder.mMenu.setOnClickListener(getClickListener(update, canDelete, viewHolder.mMenu));
-        viewHolder.mProgress.setVisibility(View.VISIBLE);
-        viewHolder.mProgressText.setVisibility(View.VISIBLE);
-        viewHolder.mBuildSize.setVisibility(View.INVISIBLE);
     }
 
     private void handleNotActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
@@ -246,27 +326,49 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     @Override
-    public void onBindViewHolder(@NonNull final ViewHolder viewHolder, int i) {
-        if (mDownloadIds == null) {
-            viewHolder.mAction.setEnabled(false);
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int i,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || viewHolder.mProgress.getVisibility() != View.VISIBLE) {
+            onBindViewHolder(viewHolder, i);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_PROGRESS) {
+                onBindViewHolder(viewHolder, i);
+                return;
+            }
+        }
+        UpdateInfo update = mUpdaterController.getUpdate(mDiffer.getCurrentList().get(i));
+        if (update == null) {
+            onBindViewHolder(viewHolder, i);
             return;
         }
+        bindProgress(viewHolder, update);
+    }
 
-        final String downloadId = mDownloadIds.get(i);
+    @Override
+    public void onBindViewHolder(@NonNull final ViewHolder viewHolder, int i) {
+        final String downloadId = mDiffer.getCurrentList().get(i);
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         if (update == null) {
             // The update was deleted
+            mBoundRevisions.remove(downloadId);
+            viewHolder.mBoundStatus = null;
             viewHolder.mAction.setEnabled(false);
             viewHolder.mAction.setText(R.string.action_download);
             return;
         }
+        mBoundRevisions.put(downloadId, update.getRevision());
+        viewHolder.mBoundStatus = update.getStatus();
 
         viewHolder.itemView.setSelected(downloadId.equals(mSelectedDownload));
 
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.UNKNOWN:
-                activeLayout = update.getStatus() == UpdateStatus.STARTING;
+                // Streamed A/B updates are installed without being downloaded
+                activeLayout = update.getStatus() == UpdateStatus.STARTING ||
+                        update.getStatus() == UpdateStatus.INSTALLING;
                 break;
             case UpdateStatus.Persistent.VERIFIED:
                 activeLayout = update.getStatus() == UpdateStatus.INSTALLING;
@@ -295,36 +397,80 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
 
     @Override
     public int getItemCount() {
-        return mDownloadIds == null ? 0 : mDownloadIds.size();
+        return mDiffer.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String downloadId = mDiffer.getCurrentList().get(position);
+        Long id = mItemIds.get(downloadId);
+        if (id == null) {
+            id = (long) mItemIds.size();
+            mItemIds.put(downloadId, id);
+        }
+        return id;
     }
 
+    /**
+     * Show the given updates. Only the items that were added, removed, moved or
+     * changed since they were bound are updated, once the lists are compared.
+     */
     public void setData(List<String> downloadIds) {
-        mDownloadIds = downloadIds;
+        mDiffer.submitList(new ArrayList<>(downloadIds));
     }
 
     public void addItem(String downloadId) {
-        if (mDownloadIds == null) {
-            mDownloadIds = new ArrayList<>();
-        }
-        mDownloadIds.add(0, downloadId);
-        notifyItemInserted(0);
+        List<String> downloadIds = new ArrayList<>(mDiffer.getCurrentList());
+        downloadIds.remove(downloadId);
+        downloadIds.add(0, downloadId);
+        mDiffer.submitList(downloadIds);
     }
 
     public void notifyItemChanged(String downloadId) {
-        if (mDownloadIds == null) {
+        Integer position = mPositions.get(downloadId);
+        if (position != null) {
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Like {@link #notifyItemChanged(String)}, when only the progress changed.
+     */
+    public void notifyProgressChanged(String downloadId) {
+        Integer position = mPositions.get(downloadId);
+        if (position != null) {
+            notifyItemChanged(position, PAYLOAD_PROGRESS);
+        }
+    }
+
+    /**
+     * Show the progress of the given update in its item right away, without going
+     * through a bind. Items that aren't shown are notified instead.
+     */
+    public void renderProgress(String downloadId) {
+        Integer position = mPositions.get(downloadId);
+        if (position == null) {
+            return;
+        }
+        RecyclerView recyclerView = mRecyclerView;
+        ViewHolder viewHolder = recyclerView == null || recyclerView.hasPendingAdapterUpdates() ?
+                null : (ViewHolder) recyclerView.findViewHolderForItemId(getItemId(position));
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        if (viewHolder == null || update == null ||
+                viewHolder.mProgress.getVisibility() != View.VISIBLE) {
+            // Cached items would be shown again as they are
+            notifyProgressChanged(downloadId);
             return;
         }
-        notifyItemChanged(mDownloadIds.indexOf(downloadId));
+        bindProgress(viewHolder, update);
     }
 
     public void removeItem(String downloadId) {
-        if (mDownloadIds == null) {
-            return;
+        List<String> downloadIds = new ArrayList<>(mDiffer.getCurrentList());
+        if (downloadIds.remove(downloadId)) {
+            mBoundRevisions.remove(downloadId);
+            mDiffer.submitList(downloadIds);
         }
-        int position = mDownloadIds.indexOf(downloadId);
-        mDownloadIds.remove(downloadId);
-        notifyItemRemoved(position);
-        notifyItemRangeChanged(position, getItemCount());
     }
 
     private void startDownloadWithWarning(final String downloadId) {
@@ -395,7 +541,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 final boolean canInstall = Utils.canInstall(update);
                 clickListener = enabled ? view -> {
                     if (canInstall) {
-                        AlertDialog.Builder installDialog = getInstallDialog(downloadId);
+                        AlertDialog.Builder installDialog = getInstallDialog(downloadId, false);
                         if (installDialog != null) {
                             installDialog.show();
                         }
@@ -468,7 +614,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         return view -> startActionMode(update, canDelete, anchor);
     }
 
-    private AlertDialog.Builder getInstallDialog(final String downloadId) {
+    private AlertDialog.Builder getInstallDialog(final String downloadId,
+            final boolean streaming) {
         if (!isBatteryLevelOk()) {
             Resources resources = mActivity.getResources();
             String message = resources.getString(R.string.dialog_battery_low_message_pct,
@@ -488,7 +635,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (streaming || Utils.isABUpdate(update.getFile())) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -508,7 +655,11 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         mActivity.getString(android.R.string.ok)))
                 .setPositiveButton(android.R.string.ok,
                         (dialog, which) -> {
-                            Utils.triggerUpdate(mActivity, downloadId);
+                            if (streaming) {
+                                Utils.triggerStreamingUpdate(mActivity, downloadId);
+                            } else {
+                                Utils.triggerUpdate(mActivity, downloadId);
+                            }
                             maybeShowInfoDialog();
                         })
                 .setNegativeButton(android.R.string.cancel, null);
@@ -560,6 +711,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         menu.findItem(R.id.menu_delete_action).setVisible(shouldShowDelete);
         menu.findItem(R.id.menu_copy_url).setVisible(update.getAvailableOnline());
         menu.findItem(R.id.menu_export_update).setVisible(isVerified);
+        menu.findItem(R.id.menu_stream_install).setVisible(Utils.isABDevice() &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                update.getAvailableOnline() && Utils.canInstall(update) && !isBusy());
 
         popupMenu.setOnMenuItemClickListener(item -> {
             int itemId = item.getItemId();
@@ -572,6 +726,12 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         update.getDownloadUrl(),
                         mActivity.getString(R.string.toast_download_url_copied));
                 return true;
+            } else if (itemId == R.id.menu_stream_install) {
+                AlertDialog.Builder installDialog = getInstallDialog(update.getDownloadId(), true);
+                if (installDialog != null) {
+                    installDialog.show();
+                }
+                return true;
             } else if (itemId == R.id.menu_export_update) {
                 if (mActivity != null) {
                     mActivity.exportUpdate(update);
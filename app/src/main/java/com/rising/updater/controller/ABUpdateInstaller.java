@@ -26,8 +26,9 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import com.rising.updater.misc.Constants;
+import com.rising.updater.misc.RemoteZipFile;
 import com.rising.updater.misc.Utils;
-import com.rising.updater.model.Update;
+import com.rising.updater.model.UpdateInfo;
 import com.rising.updater.model.UpdateStatus;
 
 import java.io.BufferedReader;
@@ -35,6 +36,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -63,7 +65,7 @@ class ABUpdateInstaller {
 
         @Override
         public void onStatusUpdate(int status, float percent) {
-            Update update = mUpdaterController.getActualUpdate(mDownloadId);
+            UpdateInfo update = mUpdaterController.getUpdate(mDownloadId);
             if (update == null) {
                 // We read the id from a preference, the update could no longer exist
                 installationDone(status == UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT);
@@ -73,22 +75,26 @@ class ABUpdateInstaller {
             switch (status) {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
+                    mProgress = Math.round(percent * 100);
+                    mFinalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
+                    mUpdaterController.changeUpdate(mDownloadId, u -> {
+                        u.setStatus(UpdateStatus.INSTALLING);
+                        u.setInstallProgress(mProgress);
+                        u.setFinalizing(mFinalizing);
+                    });
                     if (update.getStatus() != UpdateStatus.INSTALLING) {
-                        update.setStatus(UpdateStatus.INSTALLING);
                         mUpdaterController.notifyUpdateChange(mDownloadId);
                     }
-                    mProgress = Math.round(percent * 100);
-                    mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
-                    mFinalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
-                    mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
                     mUpdaterController.notifyInstallProgress(mDownloadId);
                 }
                 break;
 
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
                     installationDone(true);
-                    update.setInstallProgress(0);
-                    update.setStatus(UpdateStatus.INSTALLED);
+                    mUpdaterController.changeUpdate(mDownloadId, u -> {
+                        u.setInstallProgress(0);
+                        u.setStatus(UpdateStatus.INSTALLED);
+                    });
                     mUpdaterController.notifyUpdateChange(mDownloadId);
                 }
                 break;
@@ -106,9 +112,10 @@ class ABUpdateInstaller {
         public void onPayloadApplicationComplete(int errorCode) {
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
                 installationDone(false);
-                Update update = mUpdaterController.getActualUpdate(mDownloadId);
-                update.setInstallProgress(0);
-                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.changeUpdate(mDownloadId, u -> {
+                    u.setInstallProgress(0);
+                    u.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                });
                 mUpdaterController.notifyUpdateChange(mDownloadId);
             }
         }
@@ -159,15 +166,15 @@ class ABUpdateInstaller {
 
         mDownloadId = downloadId;
 
-        File file = mUpdaterController.getActualUpdate(mDownloadId).getFile();
+        File file = mUpdaterController.getUpdate(mDownloadId).getFile();
         install(file, downloadId);
     }
 
     public void install(File file, String downloadId) {
         if (!file.exists()) {
             Log.e(TAG, "The given update doesn't exist");
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.changeUpdate(downloadId,
+                    u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
             mUpdaterController.notifyUpdateChange(downloadId);
             return;
         }
@@ -191,18 +198,96 @@ class ABUpdateInstaller {
             zipFile.close();
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
-            mUpdaterController.getActualUpdate(mDownloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.changeUpdate(mDownloadId,
+                    u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
             mUpdaterController.notifyUpdateChange(mDownloadId);
             return;
         }
 
+        applyPayload("file://" + file.getAbsolutePath(), offset, 0, headerKeyValuePairs,
+                downloadId);
+    }
+
+    /**
+     * Apply the payload straight from the server, without downloading the package first.
+     * Only the central directory, the local header of the payload and the payload
+     * properties are read here, update_engine fetches and verifies the payload itself.
+     */
+    public void streamInstall(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return;
+        }
+
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        if (update == null) {
+            Log.e(TAG, "Update not found for ID: " + downloadId);
+            return;
+        }
+
+        mDownloadId = downloadId;
+        mUpdaterController.changeUpdate(downloadId, u -> {
+            u.setInstallProgress(0);
+            u.setFinalizing(false);
+            u.setStatus(UpdateStatus.INSTALLING);
+        });
+        mUpdaterController.notifyUpdateChange(downloadId);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, downloadId)
+                .apply();
+
+        final String url = update.getDownloadUrl();
+        new Thread(() -> {
+            String payloadUrl;
+            long offset;
+            long size;
+            String[] headerKeyValuePairs;
+            try {
+                RemoteZipFile zipFile = new RemoteZipFile(url);
+                RemoteZipFile.Entry payloadEntry =
+                        zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                RemoteZipFile.Entry payloadPropEntry =
+                        zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+                if (payloadEntry == null || payloadPropEntry == null) {
+                    throw new IOException("Not an A/B update");
+                } else if (payloadEntry.getMethod() != ZipEntry.STORED) {
+                    throw new IOException("The payload is compressed");
+                }
+                offset = zipFile.getDataOffset(payloadEntry);
+                size = payloadEntry.getSize();
+                payloadUrl = zipFile.getUrl();
+                String properties = new String(zipFile.read(payloadPropEntry),
+                        StandardCharsets.UTF_8);
+                headerKeyValuePairs = properties.split("\\r?\\n");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not prepare " + url, e);
+                installationDone(false);
+                mUpdaterController.changeUpdate(downloadId,
+                        u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
+                mUpdaterController.notifyUpdateChange(downloadId);
+                return;
+            }
+            try {
+                applyPayload(payloadUrl, offset, size, headerKeyValuePairs, downloadId);
+            } catch (ServiceSpecificException e) {
+                Log.e(TAG, "Could not apply payload from " + payloadUrl, e);
+                installationDone(false);
+                mUpdaterController.changeUpdate(downloadId,
+                        u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
+                mUpdaterController.notifyUpdateChange(downloadId);
+            }
+        }).start();
+    }
+
+    private void applyPayload(String uri, long offset, long size, String[] headerKeyValuePairs,
+            String downloadId) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                installationDone(false);
+                mUpdaterController.changeUpdate(downloadId,
+                        u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
                 mUpdaterController.notifyUpdateChange(downloadId);
                 return;
             }
@@ -217,20 +302,20 @@ class ABUpdateInstaller {
             Log.e(TAG, "Failed to enable performance mode. Verify that kernel has CFQ enabled");
         }
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
         try {
-            mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+            mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
         } catch (ServiceSpecificException e) {
             if (e.errorCode == 66 /* kUpdateAlreadyInstalled */) {
                 installationDone(true);
-                mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLED);
+                mUpdaterController.changeUpdate(mDownloadId,
+                        u -> u.setStatus(UpdateStatus.INSTALLED));
                 mUpdaterController.notifyUpdateChange(mDownloadId);
                 return;
             }
             throw e;
         }
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.changeUpdate(mDownloadId, u -> u.setStatus(UpdateStatus.INSTALLING));
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
@@ -283,8 +368,8 @@ class ABUpdateInstaller {
         mUpdateEngine.cancel();
         installationDone(false);
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+        mUpdaterController.changeUpdate(mDownloadId,
+                u -> u.setStatus(UpdateStatus.INSTALLATION_CANCELLED));
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
     }
@@ -306,8 +391,8 @@ class ABUpdateInstaller {
 
         mUpdateEngine.suspend();
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
+        mUpdaterController.changeUpdate(mDownloadId,
+                u -> u.setStatus(UpdateStatus.INSTALLATION_SUSPENDED));
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
@@ -329,10 +414,12 @@ class ABUpdateInstaller {
 
         mUpdateEngine.resume();
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.changeUpdate(mDownloadId, u -> {
+            u.setStatus(UpdateStatus.INSTALLING);
+            u.setInstallProgress(mProgress);
+            u.setFinalizing(mFinalizing);
+        });
         mUpdaterController.notifyUpdateChange(mDownloadId);
-        mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
-        mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
         mUpdaterController.notifyInstallProgress(mDownloadId);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.rising.updater.misc.Constants;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Deletes the files of the download directory that don't belong to any known
+ * download, such as the partial files of downloads that were never recorded or
+ * the files left behind when the data of the application were wiped.
+ * The directory is only listed if its entries changed since the last run.
+ */
+class DownloadDirReconciler {
+
+    private static final String TAG = "DownloadDirReconciler";
+
+    private static final String PREF_RECONCILED_DIR_TIME = "downloads_dir_reconciled_time";
+
+    // Files being written by something else than a download, e.g. an import
+    private static final long MIN_ORPHAN_AGE_MS = 10 * 60 * 1000;
+
+    private final File mDirectory;
+    private final SharedPreferences mPreferences;
+    private long mReconciledDirTime;
+
+    DownloadDirReconciler(File directory, SharedPreferences preferences) {
+        mDirectory = directory;
+        mPreferences = preferences;
+        mReconciledDirTime = preferences.getLong(PREF_RECONCILED_DIR_TIME, -1);
+    }
+
+    /**
+     * @param knownPaths the absolute paths of the files of the known downloads
+     */
+    synchronized void reconcile(Set<String> knownPaths) {
+        // Creating, deleting or renaming a file changes the time of the directory
+        long dirTime = mDirectory.lastModified();
+        if (dirTime == 0 || dirTime == mReconciledDirTime) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        boolean skipped = false;
+        int deleted = 0;
+        for (File file : files) {
+            if (knownPaths.contains(file.getAbsolutePath()) || !file.isFile() ||
+                    file.getName().endsWith(Constants.UNCRYPT_FILE_EXT)) {
+                continue;
+            }
+            if (now - file.lastModified() < MIN_ORPHAN_AGE_MS) {
+                skipped = true;
+                continue;
+            }
+            Log.d(TAG, "Deleting " + file.getAbsolutePath());
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+        Log.d(TAG, "Checked " + files.length + " files, deleted " + deleted);
+        // A recent file may still turn out to be an orphan, if not list again only
+        // once the directory changed
+        if (!skipped) {
+            mReconciledDirTime = mDirectory.lastModified();
+            mPreferences.edit().putLong(PREF_RECONCILED_DIR_TIME, mReconciledDirTime).apply();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import android.content.Context;
+import android.os.storage.StorageManager;
+import android.util.Log;
+
+import com.rising.updater.misc.Utils;
+import com.rising.updater.model.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Makes sure a download fits in the download directory before it starts, rather
+ * than letting it fail once the storage is full. Cached data of other apps is
+ * cleared if needed, and so are the least recently used verified packages.
+ */
+class DownloadSpaceManager {
+
+    private static final String TAG = "DownloadSpaceManager";
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final StorageManager mStorageManager;
+
+    DownloadSpaceManager(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+        mStorageManager = context.getSystemService(StorageManager.class);
+    }
+
+    /**
+     * @param size the size of the package, or a value <= 0 if unknown
+     * @param downloadedBytes the bytes of the package already downloaded
+     * @return the bytes still needed to download and install the package, or 0 if
+     *         the size isn't known or the package is already downloaded
+     */
+    long getRequiredBytes(long size, long downloadedBytes) {
+        if (size <= 0 || downloadedBytes >= size) {
+            return 0;
+        }
+        long required = size - downloadedBytes;
+        // The package is copied before installing so that uncrypt can rewrite it
+        if (!Utils.isABDevice() && Utils.isEncrypted(mContext, mDirectory)) {
+            required += size;
+        }
+        return required;
+    }
+
+    /**
+     * Make the given bytes available, evicting packages if needed. Nothing is evicted
+     * unless evicting all the candidates would free enough space.
+     *
+     * @param bytes the bytes needed
+     * @param candidates the packages that can be evicted
+     * @param evictor deletes the given package, returns false if it couldn't
+     * @return whether the bytes are now available
+     */
+    boolean reserve(long bytes, List<Update> candidates, Predicate<Update> evictor) {
+        if (bytes <= 0) {
+            return true;
+        }
+        long available = getAllocatableBytes();
+        if (available < bytes) {
+            long evictable = 0;
+            for (Update update : candidates) {
+                evictable += update.getFile().length();
+            }
+            if (available + evictable < bytes) {
+                Log.e(TAG, "Need " + bytes + " bytes, only " + available + " available and " +
+                        evictable + " evictable");
+                return false;
+            }
+            List<Update> lru = new ArrayList<>(candidates);
+            lru.sort(Comparator.comparingLong(update -> update.getFile().lastModified()));
+            for (Update update : lru) {
+                long size = update.getFile().length();
+                Log.d(TAG, "Evicting " + update.getDownloadId() + " to free " + size +
+                        " bytes");
+                if (evictor.test(update)) {
+                    available = getAllocatableBytes();
+                    if (available >= bytes) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (available < bytes) {
+            Log.e(TAG, "Need " + bytes + " bytes, only " + available + " available");
+            return false;
+        }
+        try {
+            // Clear the cached data that counts as allocatable, if needed
+            mStorageManager.allocateBytes(getUuid(), bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not allocate " + bytes + " bytes", e);
+            return mDirectory.getUsableSpace() >= bytes;
+        }
+        return true;
+    }
+
+    private long getAllocatableBytes() {
+        try {
+            return mStorageManager.getAllocatableBytes(getUuid());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not get the allocatable bytes", e);
+            return mDirectory.getUsableSpace();
+        }
+    }
+
+    private UUID getUuid() throws IOException {
+        return mStorageManager.getUuidForPath(mDirectory);
+    }
+}
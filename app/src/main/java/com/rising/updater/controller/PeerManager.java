@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.InetAddresses;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.rising.updater.download.PeerServer;
+import com.rising.updater.misc.Constants;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Shares verified packages with other devices of the local network and keeps track
+ * of the devices doing the same, so that they can be used as download mirrors.
+ * Peers are found through DNS-SD. Packages are only shared while connected to a
+ * Wi-Fi or Ethernet network, on the address the device has in that network.
+ * For testing, the server can be bound to another address, such as the loopback
+ * one, with {@link Constants#PROP_UPDATER_PEER_ADDRESS}.
+ */
+class PeerManager {
+
+    private static final String TAG = "PeerManager";
+
+    private static final String SERVICE_TYPE = "_risingupdater._tcp";
+    private static final String SERVICE_NAME = "RisingUpdater";
+
+    // Don't waste too much time on unreachable peers before falling back to the server
+    private static final int MAX_PEERS = 3;
+
+    private final ConnectivityManager mConnectivityManager;
+    private final NsdManager mNsdManager;
+    private final PeerServer mPeerServer;
+
+    private final Map<String, URL> mPeers = new LinkedHashMap<>();
+    private final Queue<NsdServiceInfo> mPendingResolves = new ArrayDeque<>();
+    private boolean mResolving;
+    private String mRegisteredName;
+    private boolean mEnabled;
+
+    // The local networks, and the one packages are shared on
+    private final Map<Network, LinkProperties> mNetworks = new LinkedHashMap<>();
+    private Network mNetwork;
+    private InetAddress mAddress;
+
+    // NsdManager only accepts a listener again once it's done with it, so new ones
+    // are used every time sharing starts
+    private NsdManager.RegistrationListener mRegistrationListener;
+    private NsdManager.DiscoveryListener mDiscoveryListener;
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+            synchronized (PeerManager.this) {
+                mNetworks.put(network, linkProperties);
+                if (mNetwork == null || mNetwork.equals(network)) {
+                    updateSharing();
+                }
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (PeerManager.this) {
+                mNetworks.remove(network);
+                if (network.equals(mNetwork)) {
+                    Log.d(TAG, "Lost network " + network);
+                    updateSharing();
+                }
+            }
+        }
+    };
+
+    private class RegistrationListener implements NsdManager.RegistrationListener {
+        @Override
+        public void onServiceRegistered(NsdServiceInfo serviceInfo) {
+            synchronized (PeerManager.this) {
+                if (this != mRegistrationListener) {
+                    return;
+                }
+                mRegisteredName = serviceInfo.getServiceName();
+            }
+            Log.d(TAG, "Registered as " + serviceInfo.getServiceName());
+        }
+
+        @Override
+        public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Registration failed: " + errorCode);
+        }
+
+        @Override
+        public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
+            Log.d(TAG, "Unregistered");
+        }
+
+        @Override
+        public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Unregistration failed: " + errorCode);
+        }
+    }
+
+    private class DiscoveryListener implements NsdManager.DiscoveryListener {
+        @Override
+        public void onDiscoveryStarted(String serviceType) {
+            Log.d(TAG, "Discovery started");
+        }
+
+        @Override
+        public void onDiscoveryStopped(String serviceType) {
+            Log.d(TAG, "Discovery stopped");
+        }
+
+        @Override
+        public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "Discovery failed: " + errorCode);
+        }
+
+        @Override
+        public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "Could not stop discovery: " + errorCode);
+        }
+
+        @Override
+        public void onServiceFound(NsdServiceInfo serviceInfo) {
+            synchronized (PeerManager.this) {
+                if (this != mDiscoveryListener ||
+                        serviceInfo.getServiceName().equals(mRegisteredName)) {
+                    return;
+                }
+                mPendingResolves.add(serviceInfo);
+                resolveNext();
+            }
+        }
+
+        @Override
+        public void onServiceLost(NsdServiceInfo serviceInfo) {
+            synchronized (PeerManager.this) {
+                if (mPeers.remove(serviceInfo.getServiceName()) != null) {
+                    Log.d(TAG, "Lost peer " + serviceInfo.getServiceName());
+                }
+            }
+        }
+    }
+
+    // NsdManager can only resolve one service at a time
+    private final NsdManager.ResolveListener mResolveListener = new NsdManager.ResolveListener() {
+        @Override
+        public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Could not resolve " + serviceInfo.getServiceName() + ": " + errorCode);
+            synchronized (PeerManager.this) {
+                mResolving = false;
+                resolveNext();
+            }
+        }
+
+        @Override
+        public void onServiceResolved(NsdServiceInfo serviceInfo) {
+            synchronized (PeerManager.this) {
+                mResolving = false;
+                // Resolved after sharing stopped
+                if (mNetwork == null) {
+                    return;
+                }
+                try {
+                    URL url = new URL("http", serviceInfo.getHost().getHostAddress(),
+                            serviceInfo.getPort(), "/");
+                    mPeers.put(serviceInfo.getServiceName(), url);
+                    Log.d(TAG, "Found peer " + url);
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, "Invalid peer address", e);
+                }
+                resolveNext();
+            }
+        }
+    };
+
+    PeerManager(Context context, PeerServer.PackageProvider provider) {
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+        mNsdManager = context.getSystemService(NsdManager.class);
+        mPeerServer = new PeerServer(provider);
+    }
+
+    synchronized void setEnabled(boolean enabled) {
+        if (enabled == mEnabled) {
+            return;
+        }
+        mEnabled = enabled;
+        if (enabled) {
+            // Local networks don't necessarily have internet access
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                    .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                    .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            mConnectivityManager.registerNetworkCallback(request, mNetworkCallback);
+        } else {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mNetworks.clear();
+            stopSharing();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the URLs the given package could be downloaded from, most recently
+     *         found peers last
+     */
+    synchronized List<String> getPeerUrls(String downloadId) {
+        List<String> urls = new ArrayList<>();
+        if (!mEnabled) {
+            return urls;
+        }
+        for (URL peer : mPeers.values()) {
+            if (urls.size() == MAX_PEERS) {
+                break;
+            }
+            urls.add(peer.toString() + downloadId);
+        }
+        return urls;
+    }
+
+    /**
+     * Share on the current network, or on any other local network if it's gone,
+     * as long as it has an address the peers can reach.
+     */
+    private void updateSharing() {
+        if (mNetwork != null && !mNetworks.containsKey(mNetwork)) {
+            stopSharing();
+        }
+        Network network = mNetwork;
+        InetAddress address = network != null ? getLocalAddress(mNetworks.get(network)) : null;
+        if (address == null) {
+            for (Map.Entry<Network, LinkProperties> entry : mNetworks.entrySet()) {
+                address = getLocalAddress(entry.getValue());
+                if (address != null) {
+                    network = entry.getKey();
+                    break;
+                }
+            }
+        }
+        if (address != null && address.equals(mAddress)) {
+            return;
+        }
+        stopSharing();
+        if (address != null) {
+            startSharing(network, address);
+        }
+    }
+
+    private static InetAddress getLocalAddress(LinkProperties linkProperties) {
+        InetAddress fallback = null;
+        for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+            InetAddress address = linkAddress.getAddress();
+            if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
+                continue;
+            }
+            // Peers are mostly resolved to their IPv4 address
+            if (address instanceof Inet4Address) {
+                return address;
+            }
+            if (fallback == null) {
+                fallback = address;
+            }
+        }
+        return fallback;
+    }
+
+    private static InetAddress getBindAddress(InetAddress address) {
+        String bindAddress = SystemProperties.get(Constants.PROP_UPDATER_PEER_ADDRESS);
+        if (bindAddress.isEmpty()) {
+            return address;
+        }
+        if (!InetAddresses.isNumericAddress(bindAddress)) {
+            Log.e(TAG, "Invalid bind address " + bindAddress);
+            return address;
+        }
+        return InetAddresses.parseNumericAddress(bindAddress);
+    }
+
+    private void startSharing(Network network, InetAddress address) {
+        int port;
+        try {
+            port = mPeerServer.start(getBindAddress(address), 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start peer server", e);
+            return;
+        }
+        mNetwork = network;
+        mAddress = address;
+        mRegistrationListener = new RegistrationListener();
+        mDiscoveryListener = new DiscoveryListener();
+        NsdServiceInfo serviceInfo = new NsdServiceInfo();
+        serviceInfo.setServiceName(SERVICE_NAME);
+        serviceInfo.setServiceType(SERVICE_TYPE);
+        serviceInfo.setPort(port);
+        mNsdManager.registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD,
+                mRegistrationListener);
+        mNsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD,
+                mDiscoveryListener);
+    }
+
+    private void stopSharing() {
+        if (mNetwork == null) {
+            return;
+        }
+        mNsdManager.stopServiceDiscovery(mDiscoveryListener);
+        mNsdManager.unregisterService(mRegistrationListener);
+        mRegistrationListener = null;
+        mDiscoveryListener = null;
+        mPeerServer.stop();
+        mPeers.clear();
+        mPendingResolves.clear();
+        mRegisteredName = null;
+        mNetwork = null;
+        mAddress = null;
+    }
+
+    private void resolveNext() {
+        if (mResolving || mPendingResolves.isEmpty() || mNetwork == null) {
+            return;
+        }
+        mResolving = true;
+        mNsdManager.resolveService(mPendingResolves.poll(), mResolveListener);
+    }
+}
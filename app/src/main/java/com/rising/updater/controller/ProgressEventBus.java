@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers progress changes to the listeners on the main thread, from a frame
+ * callback, so that views changed by the listeners are drawn in the same frame.
+ * Changes posted between two dispatches are merged, so listeners are called at
+ * most once per type and update in each frame and then read the latest state of
+ * the update.
+ */
+public class ProgressEventBus {
+
+    // Frames stop while the screen is off, notifications must still be updated
+    private static final long MAX_DISPATCH_DELAY_MS = 100;
+
+    public enum Type {
+        DOWNLOAD,
+        VERIFICATION,
+        INSTALL,
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    public interface Listener {
+        void onProgress(Type type, String downloadId);
+    }
+
+    private static ProgressEventBus sInstance = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Runnable mDispatchRunnable = this::dispatch;
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> dispatch();
+    // Choreographer is per thread, so frames are requested from the main thread
+    private final Runnable mScheduleRunnable = () -> {
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        mHandler.postDelayed(mDispatchRunnable, MAX_DISPATCH_DELAY_MS);
+    };
+
+    // Pending types of each update as a bit mask. An update keeps its mask once it
+    // posted, there are only a few of them, so that posting doesn't allocate
+    private final Map<String, int[]> mMasks = new HashMap<>();
+    // Updates with pending types, in the order they were first posted
+    private ArrayList<String> mPending = new ArrayList<>();
+    private ArrayList<String> mDispatching = new ArrayList<>();
+    private int[] mDispatchingMasks = new int[8];
+    private boolean mDispatchScheduled;
+
+    public static synchronized ProgressEventBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProgressEventBus();
+        }
+        return sInstance;
+    }
+
+    private ProgressEventBus() {
+    }
+
+    /**
+     * Register a listener, called on the main thread.
+     */
+    public void register(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unregister(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    void post(Type type, String downloadId) {
+        synchronized (this) {
+            int[] mask = mMasks.get(downloadId);
+            if (mask == null) {
+                mask = new int[1];
+                mMasks.put(downloadId, mask);
+            }
+            if (mask[0] == 0) {
+                mPending.add(downloadId);
+            }
+            mask[0] |= 1 << type.ordinal();
+            if (mDispatchScheduled) {
+                return;
+            }
+            mDispatchScheduled = true;
+            if (Looper.myLooper() == mHandler.getLooper()) {
+                mScheduleRunnable.run();
+            } else {
+                mHandler.post(mScheduleRunnable);
+            }
+        }
+    }
+
+    private void dispatch() {
+        // Whichever comes first, the frame or the timeout
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mHandler.removeCallbacks(mDispatchRunnable);
+        ArrayList<String> events;
+        int[] masks;
+        synchronized (this) {
+            events = mPending;
+            mPending = mDispatching;
+            mDispatching = events;
+            if (mDispatchingMasks.length < events.size()) {
+                mDispatchingMasks = new int[events.size() * 2];
+            }
+            masks = mDispatchingMasks;
+            for (int i = 0; i < events.size(); i++) {
+                int[] mask = mMasks.get(events.get(i));
+                masks[i] = mask[0];
+                mask[0] = 0;
+            }
+            mDispatchScheduled = false;
+        }
+        for (int i = 0; i < events.size(); i++) {
+            for (Type type : TYPES) {
+                if ((masks[i] & (1 << type.ordinal())) == 0) {
+                    continue;
+                }
+                for (Listener listener : mListeners) {
+                    listener.onProgress(type, events.get(i));
+                }
+            }
+        }
+        events.clear();
+    }
+}
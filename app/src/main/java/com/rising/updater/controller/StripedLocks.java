@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+/**
+ * A fixed set of locks shared by keys with the same hash, so that changes to
+ * different updates rarely wait for each other without a lock per update.
+ */
+class StripedLocks {
+
+    private final Object[] mLocks;
+
+    StripedLocks(int stripes) {
+        mLocks = new Object[stripes];
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the lock of the given key, always the same one
+     */
+    Object get(String key) {
+        return mLocks[(key.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+}
@@ -19,32 +19,48 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
 import com.rising.updater.UpdatesDbHelper;
 import com.rising.updater.download.DownloadClient;
+import com.rising.updater.download.ThroughputEstimator;
+import com.rising.updater.misc.BackgroundExecutor;
+import com.rising.updater.misc.Constants;
+import com.rising.updater.misc.FileUtils;
+import com.rising.updater.misc.PackageVerifier;
 import com.rising.updater.misc.Utils;
+import com.rising.updater.model.DownloadState;
 import com.rising.updater.model.Update;
 import com.rising.updater.model.UpdateInfo;
+import com.rising.updater.model.UpdateSnapshot;
 import com.rising.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class UpdaterController {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
-    public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
@@ -55,16 +71,34 @@ public class UpdaterController {
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    private static final int LOCK_STRIPES = 16;
+
+    private static final String RECONCILE_TASK_KEY = "reconcile_downloads_dir";
+
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
+    private final ProgressEventBus mProgressEventBus = ProgressEventBus.getInstance();
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbWriter mUpdatesDbWriter;
+    private final BackgroundExecutor mExecutor = BackgroundExecutor.getInstance();
+    private final DownloadClientFactory mClientFactory;
 
     private final PowerManager.WakeLock mWakeLock;
+    private final PeerManager mPeerManager;
 
     private final File mDownloadRoot;
+    private final DownloadDirReconciler mDirReconciler;
+    private final DownloadSpaceManager mSpaceManager;
+
+    private final AtomicInteger mActiveDownloads = new AtomicInteger();
 
-    private int mActiveDownloads = 0;
-    private final Set<String> mVerifyingUpdates = new HashSet<>();
+    // Downloads are loaded from the database in the background
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> mLoadedCallbacks = new ArrayList<>();
+    private volatile boolean mLoaded;
+    // The files of the downloads that couldn't be loaded must not be taken for leftovers
+    private volatile boolean mLoadFailed;
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
 
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
@@ -73,31 +107,145 @@ public class UpdaterController {
         return sUpdaterController;
     }
 
+    /**
+     * Builds the clients of the downloads, tests replace it to run without network.
+     */
+    @VisibleForTesting
+    interface DownloadClientFactory {
+        DownloadClient build(String downloadId, DownloadClient.Builder builder,
+                DownloadClient.DownloadCallback callback) throws IOException;
+    }
+
     private UpdaterController(Context context) {
+        this(context, new UpdatesDbHelper(context), Utils.getDownloadPath(context),
+                (downloadId, builder, callback) -> builder.build());
+    }
+
+    @VisibleForTesting
+    UpdaterController(Context context, UpdatesDbHelper dbHelper, File downloadRoot,
+            DownloadClientFactory clientFactory) {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
-        mUpdatesDbHelper = new UpdatesDbHelper(context);
-        mDownloadRoot = Utils.getDownloadPath(context);
+        mUpdatesDbHelper = dbHelper;
+        mUpdatesDbWriter = new UpdatesDbWriter(mUpdatesDbHelper);
+        mDownloadRoot = downloadRoot;
+        mClientFactory = clientFactory;
         PowerManager powerManager = context.getSystemService(PowerManager.class);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mDirReconciler = new DownloadDirReconciler(mDownloadRoot,
+                PreferenceManager.getDefaultSharedPreferences(mContext));
+        mSpaceManager = new DownloadSpaceManager(mContext, mDownloadRoot);
 
-        Utils.cleanupDownloadsDir(context);
+        mPeerManager = new PeerManager(mContext, this::getSharedPackage);
+        mPeerManager.setEnabled(PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(Constants.PREF_PEER_SHARING, false));
 
-        for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+        mExecutor.execute(BackgroundExecutor.Pool.IO, this::loadDownloads);
+    }
+
+    private void loadDownloads() {
+        try {
+            final long startTime = SystemClock.elapsedRealtime();
+            Utils.cleanupDownloadsDir(mContext);
+            Map<String, DownloadState> states = mUpdatesDbHelper.getDownloadStates();
+            List<Update> updates = mUpdatesDbHelper.getUpdates();
+            for (Update update : updates) {
+                addUpdate(update, false, states.get(update.getDownloadId()));
+            }
+            Log.d(TAG, "Loaded " + updates.size() + " downloads in " +
+                    (SystemClock.elapsedRealtime() - startTime) + "ms");
+            reconcileDownloadsDir();
+        } catch (RuntimeException e) {
+            // The database is kept as is if it can't be upgraded, go on with the updates
+            // found online rather than waiting forever
+            Log.e(TAG, "Could not load the downloads of previous runs", e);
+            mLoadFailed = true;
+        } finally {
+            onDownloadsLoaded();
+        }
+    }
+
+    private void onDownloadsLoaded() {
+        List<Runnable> callbacks;
+        synchronized (mLoadedCallbacks) {
+            mLoaded = true;
+            callbacks = new ArrayList<>(mLoadedCallbacks);
+            mLoadedCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            mMainHandler.post(callback);
         }
     }
 
+    private void reconcileDownloadsDirAsync() {
+        // Runs after the tasks already queued for the directory
+        mExecutor.execute(BackgroundExecutor.Pool.IO, RECONCILE_TASK_KEY,
+                this::reconcileDownloadsDir);
+    }
+
+    private void reconcileDownloadsDir() {
+        if (mLoadFailed) {
+            Log.d(TAG, "Downloads of previous runs unknown, not reconciling");
+            return;
+        }
+        Set<String> knownPaths = new HashSet<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            File file = entry.mUpdate.getFile();
+            if (file != null) {
+                knownPaths.add(file.getAbsolutePath());
+            }
+        }
+        mDirReconciler.reconcile(knownPaths);
+    }
+
+    /**
+     * @return whether the downloads known from previous runs were loaded. Until then,
+     *         the controller only knows the updates added since it was created
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run the given callback once the downloads are loaded, right away if they are.
+     * Otherwise the callback runs on the main thread.
+     */
+    public void runWhenLoaded(Runnable callback) {
+        synchronized (mLoadedCallbacks) {
+            if (!mLoaded) {
+                mLoadedCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
     private static class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
-        private DownloadEntry(Update update) {
+        final AtomicReference<DownloadClient> mDownloadClient = new AtomicReference<>();
+        volatile UpdateSnapshot mSnapshot;
+        // Kept across pauses and mirror changes, so that the speed doesn't start over
+        final ThroughputEstimator mThroughput = new ThroughputEstimator();
+        // State of the incomplete download, null if there's nothing to resume
+        volatile DownloadState mState;
+        private DownloadEntry(Update update, DownloadState state) {
             mUpdate = update;
+            mState = state;
+            if (state != null) {
+                mThroughput.setInitialSpeed(state.getSpeed());
+            }
         }
     }
 
-    private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    // Entries can be read without locking, changes to an entry are made while holding
+    // the lock of its download id so that they don't interleave
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
+    private final StripedLocks mLocks = new StripedLocks(LOCK_STRIPES);
+
+    private Object getLock(String downloadId) {
+        return mLocks.get(downloadId);
+    }
 
     void notifyUpdateChange(String downloadId) {
         Intent intent = new Intent();
@@ -114,17 +262,15 @@ public class UpdaterController {
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mProgressEventBus.post(ProgressEventBus.Type.DOWNLOAD, downloadId);
+    }
+
+    void notifyVerificationProgress(String downloadId) {
+        mProgressEventBus.post(ProgressEventBus.Type.VERIFICATION, downloadId);
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mProgressEventBus.post(ProgressEventBus.Type.INSTALL, downloadId);
     }
 
     private void tryReleaseWakelock() {
@@ -134,27 +280,46 @@ public class UpdaterController {
     }
 
     private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+        if (entry.mDownloadClient.compareAndSet(null, downloadClient)) {
+            mActiveDownloads.incrementAndGet();
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
     }
 
-    private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
+    private DownloadClient removeDownloadClient(DownloadEntry entry) {
+        DownloadClient downloadClient = entry.mDownloadClient.getAndSet(null);
+        if (downloadClient != null) {
+            mActiveDownloads.decrementAndGet();
         }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
+        return downloadClient;
     }
 
-    private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
-        return new DownloadClient.DownloadCallback() {
+    /**
+     * Callback of one client. A client that was paused may still report its outcome
+     * once the download was started again, that is then ignored.
+     */
+    private class DownloadCallback implements DownloadClient.DownloadCallback {
+        private final String mDownloadId;
+        // Set before the client starts, with the lock of the download held
+        private DownloadClient mClient;
 
-            @Override
-            public void onResponse(DownloadClient.Headers headers) {
-                final DownloadEntry entry = mDownloads.get(downloadId);
+        private DownloadCallback(String downloadId) {
+            mDownloadId = downloadId;
+        }
+
+        // Must be called with the lock of the download held
+        private DownloadEntry getEntry() {
+            DownloadEntry entry = mDownloads.get(mDownloadId);
+            return entry != null && mClient != null && entry.mDownloadClient.get() == mClient ?
+                    entry : null;
+        }
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+            final String downloadId = mDownloadId;
+            final String validator = getValidator(headers);
+            final String mirrorUrl = getMirrorUrl(downloadId, headers);
+            synchronized (getLock(downloadId)) {
+                final DownloadEntry entry = getEntry();
                 if (entry == null) {
                     return;
                 }
@@ -172,32 +337,50 @@ public class UpdaterController {
                 }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbWriter.addUpdateWithOnConflict(update,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                DownloadState previous = entry.mState;
+                entry.mState = new DownloadState(
+                        previous != null ? previous.getDownloadedBytes() : 0,
+                        validator, mirrorUrl, entry.mThroughput.getSpeed());
+                saveDownloadState(entry);
                 notifyUpdateChange(downloadId);
             }
+            // The clients allocate the file to its full length right after this. If we get
+            // killed, only the saved state tells it apart from a complete download, so don't
+            // wait for the delayed write
+            mUpdatesDbWriter.flush();
+        }
 
-            @Override
-            public void onSuccess() {
-                Log.d(TAG, "Download complete");
-                DownloadEntry entry = mDownloads.get(downloadId);
+        @Override
+        public void onSuccess() {
+            final String downloadId = mDownloadId;
+            Log.d(TAG, "Download complete");
+            synchronized (getLock(downloadId)) {
+                DownloadEntry entry = getEntry();
                 if (entry != null) {
                     Update update = entry.mUpdate;
                     update.setStatus(UpdateStatus.VERIFYING);
                     removeDownloadClient(entry);
+                    entry.mState = null;
+                    mUpdatesDbWriter.changeDownloadState(downloadId, null);
+                    reconcileDownloadsDirAsync();
                     verifyUpdateAsync(downloadId);
                     notifyUpdateChange(downloadId);
-                    tryReleaseWakelock();
                 }
             }
+            tryReleaseWakelock();
+        }
 
-            @Override
-            public void onFailure(boolean cancelled) {
-                if (cancelled) {
-                    Log.d(TAG, "Download cancelled");
-                    // Already notified
-                } else {
-                    DownloadEntry entry = mDownloads.get(downloadId);
+        @Override
+        public void onFailure(boolean cancelled) {
+            if (cancelled) {
+                Log.d(TAG, "Download cancelled");
+                // Already notified
+            } else {
+                final String downloadId = mDownloadId;
+                synchronized (getLock(downloadId)) {
+                    DownloadEntry entry = getEntry();
                     if (entry != null) {
                         Update update = entry.mUpdate;
                         Log.e(TAG, "Download failed");
@@ -206,9 +389,34 @@ public class UpdaterController {
                         notifyUpdateChange(downloadId);
                     }
                 }
-                tryReleaseWakelock();
             }
-        };
+            tryReleaseWakelock();
+        }
+    }
+
+    private static String getValidator(DownloadClient.Headers headers) {
+        String eTag = headers.get("ETag");
+        // Weak validators can't be used to resume
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return headers.get("Last-Modified");
+    }
+
+    private String getMirrorUrl(String downloadId, DownloadClient.Headers headers) {
+        String url = headers.getUrl();
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (url == null || entry == null || url.equals(entry.mUpdate.getDownloadUrl()) ||
+                mPeerManager.getPeerUrls(downloadId).contains(url)) {
+            // Peers come and go, they are looked up again when resuming
+            return null;
+        }
+        return url;
+    }
+
+    // Must be called with the lock of the download held
+    private void saveDownloadState(DownloadEntry entry) {
+        mUpdatesDbWriter.changeDownloadState(entry.mUpdate.getDownloadId(), entry.mState);
     }
 
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
@@ -235,48 +443,211 @@ public class UpdaterController {
                 }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                // The clients already limit the rate, only forward meaningful changes,
+                // refreshing speed and ETA every now and then, and the final value
+                if (progress != mProgress || now - mLastUpdate >= MAX_REPORT_INTERVAL_MS ||
+                        bytesRead >= contentLength) {
                     mProgress = progress;
                     mLastUpdate = now;
-                    update.setProgress(progress);
-                    update.setEta(eta);
-                    update.setSpeed(speed);
+                    final ThroughputEstimator throughput = entry.mThroughput;
+                    if (eta < 0) {
+                        // The size of the file wasn't known to the client
+                        eta = throughput.getEta(contentLength - bytesRead);
+                    }
+                    synchronized (getLock(downloadId)) {
+                        update.setProgress(progress);
+                        update.setEta(eta);
+                        update.setSpeed(speed);
+                        update.setInstantSpeed(throughput.getInstantSpeed());
+                        update.setAverageSpeed(throughput.getAverageSpeed());
+                        update.setSpeedP10(throughput.getSpeedPercentile(10));
+                        update.setSpeedP90(throughput.getSpeedPercentile(90));
+                    }
                     notifyDownloadProgress(downloadId);
                 }
             }
+
+            @Override
+            public void onSynced(long bytesSynced) {
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry == null) {
+                    return;
+                }
+                // Only bytes that reached the storage are safe to resume from
+                synchronized (getLock(downloadId)) {
+                    DownloadState state = entry.mState;
+                    if (state != null) {
+                        entry.mState = state.withProgress(bytesSynced,
+                                entry.mThroughput.getSpeed());
+                        saveDownloadState(entry);
+                    }
+                }
+            }
+        };
+    }
+
+    private PackageVerifier.ProgressListener getVerificationProgressListener(
+            final String downloadId) {
+        return new PackageVerifier.ProgressListener() {
+            private long mLastUpdate = 0;
+            private int mProgress = 0;
+            // Each verification has its own, the speed of the download is unrelated
+            private final ThroughputEstimator mThroughput = new ThroughputEstimator();
+
+            @Override
+            public void onProgress(long bytesVerified, long totalBytes) {
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry == null || totalBytes <= 0) {
+                    return;
+                }
+                final long now = SystemClock.elapsedRealtime();
+                mThroughput.addSample(now, bytesVerified);
+                int progress = Math.round(bytesVerified * 100f / totalBytes);
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
+                    mProgress = progress;
+                    mLastUpdate = now;
+                    Update update = entry.mUpdate;
+                    synchronized (getLock(downloadId)) {
+                        update.setVerificationProgress(progress);
+                        update.setVerificationSpeed(Math.max(mThroughput.getSpeed(), 0));
+                        update.setVerificationEta(
+                                mThroughput.getEta(totalBytes - bytesVerified));
+                    }
+                    notifyVerificationProgress(downloadId);
+                }
+            }
         };
     }
 
     @SuppressLint("SetWorldReadable")
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
+        mExecutor.execute(BackgroundExecutor.Pool.CPU, downloadId, () -> {
             DownloadEntry entry = mDownloads.get(downloadId);
             if (entry != null) {
                 Update update = entry.mUpdate;
+                synchronized (getLock(downloadId)) {
+                    update.setVerificationProgress(0);
+                    update.setVerificationSpeed(0);
+                    update.setVerificationEta(-1);
+                }
                 File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+                final boolean verified = file.exists() && (isAlreadyVerified(file) ||
+                        verifyPackage(file, update.getDownloadUrl(),
+                                getVerificationProgressListener(downloadId)));
+                if (verified) {
                     //noinspection ResultOfMethodCallIgnored
                     file.setReadable(true, false);
-                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
-                } else {
-                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
-                    update.setProgress(0);
-                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
                 }
-                mVerifyingUpdates.remove(downloadId);
+                synchronized (getLock(downloadId)) {
+                    if (verified) {
+                        update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                        mUpdatesDbWriter.changeUpdateStatus(update);
+                    } else {
+                        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                        mUpdatesDbWriter.removeUpdate(downloadId);
+                        update.setProgress(0);
+                    }
+                    update.setStatus(verified ?
+                            UpdateStatus.VERIFIED : UpdateStatus.VERIFICATION_FAILED);
+                    mVerifyingUpdates.remove(downloadId);
+                }
                 notifyUpdateChange(downloadId);
+            } else {
+                mVerifyingUpdates.remove(downloadId);
             }
-        }).start();
+        });
+    }
+
+    private boolean isAlreadyVerified(File file) {
+        if (mUpdatesDbHelper.getVerifiedDigest(file) != null) {
+            Log.d(TAG, file.getName() + " was already verified");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember that the given package passed verification. If an identical package
+     * is already stored, the given one is replaced with a link to it, so that the
+     * same build is only stored once however it was added. Its storage is freed once
+     * the last of the packages is deleted.
+     *
+     * @param digest the SHA-256 digest of the package
+     */
+    public void addVerifiedPackage(File file, byte[] digest) {
+        File original = mUpdatesDbHelper.findVerifiedPackage(
+                FileUtils.toHexString(digest), file);
+        if (original != null) {
+            linkPackage(original, file);
+        }
+        // The file changed if it was replaced
+        mUpdatesDbHelper.addVerifiedPackage(file, digest);
+    }
+
+    /**
+     * Make the given file a verified package without transferring it, by linking it
+     * to an identical package that's already stored.
+     *
+     * @param digest the SHA-256 digest of the package, as a hex string
+     * @return whether the file is now a verified package with the given digest
+     */
+    public boolean linkVerifiedPackage(File file, String digest) {
+        if (digest.equals(mUpdatesDbHelper.getVerifiedDigest(file))) {
+            return true;
+        }
+        File original = mUpdatesDbHelper.findVerifiedPackage(digest, file);
+        if (original == null || !linkPackage(original, file)) {
+            return false;
+        }
+        mUpdatesDbHelper.addVerifiedPackage(file, digest);
+        return true;
     }
 
-    private boolean verifyPackage(File file) {
+    /**
+     * @return whether a package of the given size passed verification, so that a new
+     *         one of that size is worth hashing to look for it
+     */
+    public boolean hasVerifiedPackage(long size) {
+        return mUpdatesDbHelper.hasVerifiedPackage(size);
+    }
+
+    /**
+     * Atomically replace the given file, if it exists, with a link to the original.
+     */
+    private boolean linkPackage(File original, File file) {
+        File link = new File(file.getPath() + ".link");
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            //noinspection ResultOfMethodCallIgnored
+            link.delete();
+            Os.link(original.getAbsolutePath(), link.getAbsolutePath());
+            Os.rename(link.getAbsolutePath(), file.getAbsolutePath());
+            Log.d(TAG, file.getName() + " is the same package as " + original.getName());
+            return true;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not link " + file.getName() + " to " + original.getName(), e);
+            //noinspection ResultOfMethodCallIgnored
+            link.delete();
+            return false;
+        }
+    }
+
+    // Deleting a package that is linked to another one doesn't free any space
+    private static boolean isSharedPackage(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_nlink > 1;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private boolean verifyPackage(File file, String downloadUrl,
+            PackageVerifier.ProgressListener listener) {
+        try {
+            byte[] digest = PackageVerifier.verify(file, downloadUrl, listener,
+                    mExecutor);
             Log.e(TAG, "Verification successful");
+            addVerifiedPackage(file, digest);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
@@ -291,10 +662,18 @@ public class UpdaterController {
         }
     }
 
-    private boolean fixUpdateStatus(Update update) {
+    private boolean fixUpdateStatus(Update update, DownloadState state) {
         switch (update.getPersistentStatus()) {
-            case UpdateStatus.Persistent.VERIFIED:
             case UpdateStatus.Persistent.INCOMPLETE:
+                if (state != null && update.getFile() != null && update.getFileSize() > 0) {
+                    // The saved state is enough, resuming checks the file anyway
+                    update.setStatus(UpdateStatus.PAUSED);
+                    update.setProgress(Math.round(
+                            state.getDownloadedBytes() * 100f / update.getFileSize()));
+                    break;
+                }
+                // Fall through
+            case UpdateStatus.Persistent.VERIFIED:
                 if (update.getFile() == null || !update.getFile().exists()) {
                     update.setStatus(UpdateStatus.UNKNOWN);
                     return false;
@@ -320,8 +699,15 @@ public class UpdaterController {
             }
         }
         for (String downloadId : toRemove) {
-            Log.d(TAG, downloadId + " no longer available online, removing");
-            mDownloads.remove(downloadId);
+            synchronized (getLock(downloadId)) {
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry == null || entry.mDownloadClient.get() != null ||
+                        entry.mUpdate.getPersistentStatus() != UpdateStatus.Persistent.UNKNOWN) {
+                    continue;
+                }
+                Log.d(TAG, downloadId + " no longer available online, removing");
+                mDownloads.remove(downloadId);
+            }
             notifyUpdateDelete(downloadId);
         }
     }
@@ -331,155 +717,370 @@ public class UpdaterController {
     }
 
     public boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
-        Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
-        if (mDownloads.containsKey(updateInfo.getDownloadId())) {
-            Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
-            DownloadEntry entry = mDownloads.get(updateInfo.getDownloadId());
+        return addUpdate(updateInfo, availableOnline, null);
+    }
+
+    private boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline,
+            DownloadState state) {
+        final String downloadId = updateInfo.getDownloadId();
+        Log.d(TAG, "Adding download: " + downloadId);
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
             if (entry != null) {
+                Log.d(TAG, "Download (" + downloadId + ") already added");
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                return false;
             }
-            return false;
-        }
-        Update update = new Update(updateInfo);
-        if (!fixUpdateStatus(update) && !availableOnline) {
-            update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-            deleteUpdateAsync(update);
-            Log.d(TAG, update.getDownloadId() + " had an invalid status and is not online");
-            return false;
+            Update update = new Update(updateInfo);
+            if (!fixUpdateStatus(update, state) && !availableOnline) {
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                deleteUpdateAsync(update);
+                Log.d(TAG, downloadId + " had an invalid status and is not online");
+                return false;
+            }
+            update.setAvailableOnline(availableOnline);
+            mDownloads.put(downloadId, new DownloadEntry(update, state));
+            return true;
         }
-        update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        return true;
     }
 
-    @SuppressLint("WakelockTimeout")
-    public void startDownload(String downloadId) {
-        Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry == null) {
-            Log.e(TAG, "Could not get download entry");
-            return;
+    /**
+     * @return the newest verified package older than the given update, if any
+     */
+    private File findDeltaBase(Update update) {
+        Update base = null;
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update candidate = entry.mUpdate;
+            File file = candidate.getFile();
+            if (candidate.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                    candidate.getStatus() != UpdateStatus.DELETED &&
+                    candidate.getTimestamp() < update.getTimestamp() &&
+                    file != null && file.exists() &&
+                    (base == null || candidate.getTimestamp() > base.getTimestamp())) {
+                base = candidate;
+            }
         }
-        Update update = entry.mUpdate;
-        File destination = new File(mDownloadRoot, update.getName());
-        if (destination.exists()) {
-            destination = Utils.appendSequentialNumber(destination);
-            Log.d(TAG, "Changing name with " + destination.getName());
+        return base != null ? base.getFile() : null;
+    }
+
+    /**
+     * The server doesn't give the digest of the packages, so a build is identified by
+     * its timestamp and size.
+     *
+     * @return the digest of a verified package of the same build as the given update,
+     *         null if there's none
+     */
+    private String findReusablePackage(Update update) {
+        if (update.getFileSize() <= 0) {
+            return null;
         }
-        update.setFile(destination);
-        DownloadClient downloadClient;
-        try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(update.getDownloadUrl())
-                    .setDestination(update.getFile())
-                    .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
-                    .setUseDuplicateLinks(true)
-                    .build();
-        } catch (IOException exception) {
-            Log.e(TAG, "Could not build download client");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
-            notifyUpdateChange(downloadId);
-            return;
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update candidate = entry.mUpdate;
+            File file = candidate.getFile();
+            if (!candidate.getDownloadId().equals(update.getDownloadId()) &&
+                    candidate.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                    candidate.getStatus() != UpdateStatus.DELETED &&
+                    candidate.getTimestamp() == update.getTimestamp() &&
+                    candidate.getFileSize() == update.getFileSize() &&
+                    file != null && file.length() == update.getFileSize()) {
+                String digest = mUpdatesDbHelper.getVerifiedDigest(file);
+                if (digest != null) {
+                    return digest;
+                }
+            }
         }
-        addDownloadClient(entry, downloadClient);
-        update.setStatus(UpdateStatus.STARTING);
-        notifyUpdateChange(downloadId);
-        downloadClient.start();
-        mWakeLock.acquire();
+        return null;
     }
 
-    @SuppressLint("WakelockTimeout")
-    public void resumeDownload(String downloadId) {
-        Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
+    /**
+     * Make room for the rest of the given download, evicting verified packages of
+     * older builds if needed. Pauses the download if there's still not enough space.
+     * Can take seconds, so don't call it on the main thread, and don't hold any lock,
+     * the evicted packages are deleted.
+     *
+     * @return whether the download can go on
+     */
+    private boolean reserveSpace(String downloadId, boolean resume) {
+        DownloadEntry downloadEntry = mDownloads.get(downloadId);
+        if (downloadEntry == null) {
+            return true;
         }
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry == null) {
-            Log.e(TAG, "Could not get download entry");
-            return;
+        Update update = downloadEntry.mUpdate;
+        // A stored package of the same build is linked instead, which takes no room
+        if (!resume && findReusablePackage(update) != null) {
+            return true;
+        }
+        long downloadedBytes = resume ? getDownloadedBytes(downloadEntry) : 0;
+        long requiredBytes = mSpaceManager.getRequiredBytes(update.getFileSize(),
+                downloadedBytes);
+        // The download is rebuilt from the blocks of the delta base, keep it
+        File deltaBase = findDeltaBase(update);
+        List<Update> candidates = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update candidate = entry.mUpdate;
+            if (!candidate.getDownloadId().equals(downloadId) &&
+                    candidate.getTimestamp() < update.getTimestamp() &&
+                    isEvictable(entry) && !candidate.getFile().equals(deltaBase)) {
+                candidates.add(candidate);
+            }
+        }
+        if (mSpaceManager.reserve(requiredBytes, candidates,
+                candidate -> evictUpdate(candidate.getDownloadId()))) {
+            return true;
+        }
+        Log.e(TAG, "Not enough space for " + downloadId);
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry != null && entry.mDownloadClient.get() == null) {
+                entry.mUpdate.setStatus(UpdateStatus.PAUSED_NO_SPACE);
+                notifyUpdateChange(downloadId);
+            }
         }
+        return false;
+    }
+
+    /**
+     * @return the bytes of the file of the download known to be valid
+     */
+    private static long getDownloadedBytes(DownloadEntry entry) {
+        File file = entry.mUpdate.getFile();
+        long length = file != null ? file.length() : 0;
+        // Files are allocated up front, so a download that was killed leaves its file
+        // longer than what was downloaded
+        DownloadState state = entry.mState;
+        return state != null ? Math.min(state.getDownloadedBytes(), length) : length;
+    }
+
+    /**
+     * @return whether the package of the given entry can be deleted to make room
+     */
+    private boolean isEvictable(DownloadEntry entry) {
         Update update = entry.mUpdate;
+        String downloadId = update.getDownloadId();
         File file = update.getFile();
-        if (file == null || !file.exists()) {
-            Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
-            notifyUpdateChange(downloadId);
-            return;
+        return !Update.LOCAL_ID.equals(downloadId) &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                update.getStatus() != UpdateStatus.DELETED &&
+                entry.mDownloadClient.get() == null &&
+                file != null && file.exists() && !isSharedPackage(file) &&
+                !isInstallingUpdate(downloadId) && !isWaitingForReboot(downloadId);
+    }
+
+    private boolean evictUpdate(String downloadId) {
+        synchronized (getLock(downloadId)) {
+            // An install may have started since the candidates were picked
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null || !isEvictable(entry)) {
+                Log.d(TAG, downloadId + " can no longer be evicted");
+                return false;
+            }
+            // Free the space right away, the rest of the deletion happens in the background
+            File file = entry.mUpdate.getFile();
+            if (!file.delete()) {
+                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                return false;
+            }
+            deleteUpdate(downloadId);
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
-            Log.d(TAG, "File already downloaded, starting verification");
-            update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
-            notifyUpdateChange(downloadId);
-        } else {
+        return true;
+    }
+
+    /**
+     * Start the given download from the IO pool, once there's room for it.
+     */
+    public void startDownload(String downloadId) {
+        Log.d(TAG, "Starting " + downloadId);
+        mExecutor.execute(BackgroundExecutor.Pool.IO, downloadId, () -> {
+            if (reserveSpace(downloadId, false)) {
+                startDownloadClient(downloadId);
+            }
+        });
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void startDownloadClient(String downloadId) {
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            // The package being verified can't be replaced
+            if (entry == null || entry.mDownloadClient.get() != null ||
+                    isVerifyingUpdate(downloadId)) {
+                return;
+            }
+            Update update = entry.mUpdate;
+            File destination = new File(mDownloadRoot, update.getName());
+            if (destination.exists()) {
+                destination = Utils.appendSequentialNumber(destination);
+                Log.d(TAG, "Changing name with " + destination.getName());
+            }
+            update.setFile(destination);
+            // Nothing to resume in a new file
+            entry.mState = null;
+            // Nothing to download if the same build is already stored
+            String digest = findReusablePackage(update);
+            if (digest != null && linkVerifiedPackage(destination, digest)) {
+                Log.d(TAG, "Reusing a stored package for " + downloadId);
+                update.setProgress(100);
+                update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+                mUpdatesDbWriter.addUpdateWithOnConflict(update,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                update.setStatus(UpdateStatus.VERIFYING);
+                verifyUpdateAsync(downloadId);
+                notifyUpdateChange(downloadId);
+                return;
+            }
+            DownloadCallback callback = new DownloadCallback(downloadId);
             DownloadClient downloadClient;
             try {
-                downloadClient = new DownloadClient.Builder()
+                DownloadClient.Builder builder = new DownloadClient.Builder()
                         .setUrl(update.getDownloadUrl())
                         .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
+                        .setDownloadCallback(callback)
                         .setProgressListener(getProgressListener(downloadId))
+                        .setThroughputEstimator(entry.mThroughput)
                         .setUseDuplicateLinks(true)
-                        .build();
+                        .setPeerUrls(mPeerManager.getPeerUrls(downloadId))
+                        .setDeltaBase(findDeltaBase(update))
+                        .setExpectedSize(update.getFileSize());
+                downloadClient = mClientFactory.build(downloadId, builder, callback);
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
                 update.setStatus(UpdateStatus.PAUSED_ERROR);
                 notifyUpdateChange(downloadId);
                 return;
             }
+            callback.mClient = downloadClient;
             addDownloadClient(entry, downloadClient);
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
-            downloadClient.resume();
+            downloadClient.start();
             mWakeLock.acquire();
         }
     }
 
-    public void pauseDownload(String downloadId) {
-        Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
-            return;
+    /**
+     * Resume the given download from the IO pool, once there's room for it.
+     */
+    public void resumeDownload(String downloadId) {
+        Log.d(TAG, "Resuming " + downloadId);
+        mExecutor.execute(BackgroundExecutor.Pool.IO, downloadId, () -> {
+            if (reserveSpace(downloadId, true)) {
+                resumeDownloadClient(downloadId);
+            }
+        });
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void resumeDownloadClient(String downloadId) {
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null || entry.mDownloadClient.get() != null ||
+                    isVerifyingUpdate(downloadId)) {
+                return;
+            }
+            Update update = entry.mUpdate;
+            File file = update.getFile();
+            if (file == null || !file.exists()) {
+                Log.e(TAG, "The destination file of " + downloadId +
+                        " doesn't exist, can't resume");
+                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                notifyUpdateChange(downloadId);
+                return;
+            }
+            if (update.getFileSize() > 0 &&
+                    getDownloadedBytes(entry) >= update.getFileSize()) {
+                Log.d(TAG, "File already downloaded, starting verification");
+                update.setStatus(UpdateStatus.VERIFYING);
+                verifyUpdateAsync(downloadId);
+                notifyUpdateChange(downloadId);
+            } else {
+                DownloadState state = entry.mState;
+                DownloadCallback callback = new DownloadCallback(downloadId);
+                DownloadClient downloadClient;
+                try {
+                    DownloadClient.Builder builder = new DownloadClient.Builder()
+                            .setUrl(update.getDownloadUrl())
+                            .setDestination(update.getFile())
+                            .setDownloadCallback(callback)
+                            .setProgressListener(getProgressListener(downloadId))
+                            .setThroughputEstimator(entry.mThroughput)
+                            .setMirrorUrl(state != null ? state.getMirrorUrl() : null)
+                            .setValidator(state != null ? state.getValidator() : null)
+                            .setResumeOffset(state != null ? state.getDownloadedBytes() : -1)
+                            .setUseDuplicateLinks(true)
+                            .setPeerUrls(mPeerManager.getPeerUrls(downloadId))
+                            .setDeltaBase(findDeltaBase(update))
+                            .setExpectedSize(update.getFileSize());
+                    downloadClient = mClientFactory.build(downloadId, builder, callback);
+                } catch (IOException exception) {
+                    Log.e(TAG, "Could not build download client");
+                    update.setStatus(UpdateStatus.PAUSED_ERROR);
+                    notifyUpdateChange(downloadId);
+                    return;
+                }
+                callback.mClient = downloadClient;
+                addDownloadClient(entry, downloadClient);
+                update.setStatus(UpdateStatus.STARTING);
+                notifyUpdateChange(downloadId);
+                downloadClient.resume();
+                mWakeLock.acquire();
+            }
         }
+    }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
-            entry.mDownloadClient.cancel();
-            removeDownloadClient(entry);
+    public void pauseDownload(String downloadId) {
+        Log.d(TAG, "Pausing " + downloadId);
+        DownloadClient downloadClient;
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                return;
+            }
+            downloadClient = removeDownloadClient(entry);
+            if (downloadClient == null) {
+                return;
+            }
             entry.mUpdate.setStatus(UpdateStatus.PAUSED);
             entry.mUpdate.setEta(0);
             entry.mUpdate.setSpeed(0);
-            notifyUpdateChange(downloadId);
+            if (entry.mState != null) {
+                saveDownloadState(entry);
+            }
         }
+        // The client may be calling back into us, don't hold the lock while cancelling
+        downloadClient.cancel();
+        notifyUpdateChange(downloadId);
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
+        mExecutor.execute(BackgroundExecutor.Pool.IO, update.getDownloadId(), () -> {
             File file = update.getFile();
+            // Nothing was downloaded yet
+            if (file == null) {
+                return;
+            }
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            mUpdatesDbHelper.removeVerifiedPackage(file);
+            reconcileDownloadsDirAsync();
+        });
+        mUpdatesDbWriter.removeUpdate(update.getDownloadId());
     }
 
     public void deleteUpdate(String downloadId) {
         Log.d(TAG, "Deleting update: " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
+        synchronized (getLock(downloadId)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null || entry.mDownloadClient.get() != null) {
+                return;
+            }
             Update update = entry.mUpdate;
             update.setStatus(UpdateStatus.DELETED);
             update.setProgress(0);
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+            entry.mState = null;
             deleteUpdateAsync(update);
 
             final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
@@ -496,33 +1097,107 @@ public class UpdaterController {
     public List<UpdateInfo> getUpdates() {
         List<UpdateInfo> updates = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            updates.add(entry.mUpdate);
+            updates.add(getSnapshot(entry));
         }
         return updates;
     }
 
+    /**
+     * @return an immutable copy of the update, compare {@link UpdateInfo#getRevision()}
+     *         to know whether it changed since the previous call
+     */
     public UpdateInfo getUpdate(String downloadId) {
         DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        return entry != null ? getSnapshot(entry) : null;
+    }
+
+    private UpdateSnapshot getSnapshot(DownloadEntry entry) {
+        UpdateSnapshot snapshot = entry.mSnapshot;
+        if (snapshot != null && snapshot.getRevision() == entry.mUpdate.getRevision()) {
+            return snapshot;
+        }
+        // Changes made by the controller hold the lock, so they are never half copied
+        synchronized (getLock(entry.mUpdate.getDownloadId())) {
+            snapshot = new UpdateSnapshot(entry.mUpdate);
+            entry.mSnapshot = snapshot;
+        }
+        return snapshot;
     }
 
-    Update getActualUpdate(String downloadId) {
+    /**
+     * Change the given update while holding its lock, like every other change.
+     *
+     * @return false if there's no such update
+     */
+    boolean changeUpdate(String downloadId, Consumer<Update> change) {
         DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        if (entry == null) {
+            return false;
+        }
+        synchronized (getLock(downloadId)) {
+            change.accept(entry.mUpdate);
+        }
+        return true;
     }
 
     public boolean isDownloading(String downloadId) {
-        //noinspection ConstantConditions
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.mDownloadClient.get() != null;
+    }
+
+    /**
+     * Write the pending database changes now, on the calling thread, without waiting
+     * for the usual delay.
+     */
+    public void flushDatabase() {
+        mUpdatesDbWriter.flush();
+    }
+
+    /**
+     * Write the pending database changes from the IO pool, waiting for them at most
+     * the given time. Meant for the main thread when the process may go away soon,
+     * the changes are still written if the wait times out.
+     *
+     * @return whether the changes were written in time
+     */
+    public boolean flushDatabase(long timeoutMs) {
+        if (!mUpdatesDbWriter.hasPendingWrites()) {
+            return true;
+        }
+        CountDownLatch flushed = new CountDownLatch(1);
+        mExecutor.execute(BackgroundExecutor.Pool.IO, () -> {
+            try {
+                mUpdatesDbWriter.flush();
+            } finally {
+                flushed.countDown();
+            }
+        });
+        try {
+            return flushed.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Write the pending database changes and wait until they reached the storage.
+     */
+    public void syncDatabase() {
+        mUpdatesDbWriter.flushAndSync();
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads.get() > 0;
+    }
+
+    @VisibleForTesting
+    int getActiveDownloadCount() {
+        return mActiveDownloads.get();
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return !mVerifyingUpdates.isEmpty();
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
@@ -547,6 +1222,20 @@ public class UpdaterController {
         return ABUpdateInstaller.isWaitingForReboot(mContext, downloadId);
     }
 
+    public void setPeerSharing(boolean enable) {
+        mPeerManager.setEnabled(enable);
+    }
+
+    private File getSharedPackage(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mUpdate.getStatus() == UpdateStatus.DELETED ||
+                entry.mUpdate.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
+            return null;
+        }
+        File file = entry.mUpdate.getFile();
+        return file != null && file.exists() ? file : null;
+    }
+
     public void setPerformanceMode(boolean enable) {
         if (!Utils.isABDevice()) {
             return;
@@ -15,6 +15,7 @@
  */
 package com.rising.updater.controller;
 
+import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -27,7 +28,11 @@ import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.Log;
 
@@ -38,6 +43,7 @@ import androidx.preference.PreferenceManager;
 import com.rising.updater.R;
 import com.rising.updater.UpdaterReceiver;
 import com.rising.updater.UpdatesActivity;
+import com.rising.updater.misc.BackgroundExecutor;
 import com.rising.updater.misc.BuildInfoUtils;
 import com.rising.updater.misc.Constants;
 import com.rising.updater.misc.StringGenerator;
@@ -59,6 +65,7 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_STREAM_INSTALL_UPDATE = "action_stream_install_update";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
 
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
@@ -72,16 +79,46 @@ public class UpdaterService extends Service {
 
     private static final int NOTIFICATION_ID = 10;
 
+    // Progress is shown at most this often, status changes are shown right away
+    private static final long PROGRESS_NOTIFICATION_INTERVAL_MS = 1000;
+    // How long onDestroy() may wait for the database, it runs on the main thread
+    private static final long DB_FLUSH_TIMEOUT_MS = 200;
+
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
     private BroadcastReceiver mBroadcastReceiver;
+    private ProgressEventBus.Listener mProgressListener;
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
 
     private UpdaterController mUpdaterController;
 
+    // Update shown in the notification, to skip progress broadcasts that change nothing
+    private String mShownDownloadId;
+    private long mShownRevision;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mProgressNotificationRunnable = this::showPendingProgress;
+    private ProgressEventBus.Type mPendingProgressType;
+    private String mPendingProgressId;
+    private boolean mProgressNotificationScheduled;
+    private long mLastNotificationTime;
+
+    // Content of the last notification and cached strings, to post and format only
+    // what changed
+    private int mPostedProgress = -1;
+    private String mPostedText;
+    private int mPercentValue = -1;
+    private String mPercentText;
+    private int mSpeedTextRes;
+    private long mSpeedTextSpeed = -1;
+    private long mSpeedTextEta = -1;
+    private String mSpeedText;
+    private String mTitleDownloadId;
+    private long mTitleTimestamp;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -112,18 +149,12 @@ public class UpdaterService extends Service {
                 String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                 if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+                    isNewRevision(update);
                     setNotificationTitle(update);
                     Bundle extras = new Bundle();
                     extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
                     mNotificationBuilder.setExtras(extras);
                     handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
                     final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
                     Bundle extras = mNotificationBuilder.getExtras();
@@ -139,16 +170,22 @@ public class UpdaterService extends Service {
             }
         };
         IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
 
+        mProgressListener = this::scheduleProgressNotification;
+        ProgressEventBus.getInstance().register(mProgressListener);
     }
 
     @Override
     public void onDestroy() {
+        // The process may go away soon, don't leave the changes to the delayed write
+        if (!mUpdaterController.flushDatabase(DB_FLUSH_TIMEOUT_MS)) {
+            Log.w(TAG, "The database changes weren't written in time");
+        }
+        ProgressEventBus.getInstance().unregister(mProgressListener);
+        mHandler.removeCallbacks(mProgressNotificationRunnable);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         super.onDestroy();
     }
@@ -184,7 +221,36 @@ public class UpdaterService extends Service {
                 installer.reconnect();
             }
             return START_STICKY;
-        } else if (ACTION_DOWNLOAD_CONTROL.equals(intent.getAction())) {
+        }
+        // The controller needs to know the downloads of previous runs to handle commands
+        mUpdaterController.runWhenLoaded(() -> handleCommand(intent));
+        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
+
+    private void installUpdate(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        // Don't reboot into the update before the database knows it's verified
+        mUpdaterController.syncDatabase();
+        try {
+            if (Utils.isABUpdate(update.getFile())) {
+                ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                        mUpdaterController);
+                installer.install(downloadId);
+            } else {
+                UpdateInstaller installer = UpdateInstaller.getInstance(this,
+                        mUpdaterController);
+                installer.install(downloadId);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not install update", e);
+            mUpdaterController.changeUpdate(downloadId,
+                    u -> u.setStatus(UpdateStatus.INSTALLATION_FAILED));
+            mUpdaterController.notifyUpdateChange(downloadId);
+        }
+    }
+
+    private void handleCommand(Intent intent) {
+        if (ACTION_DOWNLOAD_CONTROL.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             int action = intent.getIntExtra(EXTRA_DOWNLOAD_CONTROL, -1);
             if (action == DOWNLOAD_RESUME) {
@@ -199,29 +265,29 @@ public class UpdaterService extends Service {
             UpdateInfo update = mUpdaterController.getUpdate(downloadId);
             if (update == null) {
                 Log.e(TAG, "Update not found for ID: " + downloadId);
-                return START_NOT_STICKY;
+                return;
             }
             
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 Log.e(TAG, "Update is not verified: " + update.getDownloadId());
-                return START_NOT_STICKY;
+                return;
             }
-            try {
-                if (Utils.isABUpdate(update.getFile())) {
-                    ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
-                            mUpdaterController);
-                    installer.install(downloadId);
-                } else {
-                    UpdateInstaller installer = UpdateInstaller.getInstance(this,
-                            mUpdaterController);
-                    installer.install(downloadId);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Could not install update", e);
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+            // Syncing the database and reading the package can take a while
+            BackgroundExecutor.getInstance().execute(BackgroundExecutor.Pool.IO, downloadId,
+                    () -> installUpdate(update));
+        } else if (ACTION_STREAM_INSTALL_UPDATE.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            if (mUpdaterController.getUpdate(downloadId) == null) {
+                Log.e(TAG, "Update not found for ID: " + downloadId);
+                return;
+            }
+            if (!Utils.isABDevice()) {
+                Log.e(TAG, "Streaming updates are only supported on A/B devices");
+                return;
             }
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                    mUpdaterController);
+            installer.streamInstall(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
@@ -248,7 +314,6 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
     public UpdaterController getUpdaterController() {
@@ -264,6 +329,12 @@ public class UpdaterService extends Service {
     }
 
     private void handleUpdateStatusChange(UpdateInfo update) {
+        // The status notification replaces any progress not shown yet
+        mHandler.removeCallbacks(mProgressNotificationRunnable);
+        mProgressNotificationScheduled = false;
+        mPendingProgressType = null;
+        mPostedProgress = -1;
+        mPostedText = null;
         switch (update.getStatus()) {
             case DELETED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
@@ -283,9 +354,10 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                startForeground(NOTIFICATION_ID, mNotificationBuilder.build(),
+                Notification notification = mNotificationBuilder.build();
+                startForeground(NOTIFICATION_ID, notification,
                         ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(notification);
                 break;
             }
             case DOWNLOADING: {
@@ -299,7 +371,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 break;
             }
             case PAUSED: {
@@ -317,17 +389,20 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
-            case PAUSED_ERROR: {
+            case PAUSED_ERROR:
+            case PAUSED_NO_SPACE: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 int progress = update.getProgress();
                 // In case we pause before the first progress update
                 mNotificationBuilder.setProgress(progress > 0 ? 100 : 0, progress, false);
                 mNotificationBuilder.mActions.clear();
-                String text = getString(R.string.download_paused_error_notification);
+                String text = getString(update.getStatus() == UpdateStatus.PAUSED_NO_SPACE ?
+                        R.string.download_paused_no_space_notification :
+                        R.string.download_paused_error_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
@@ -337,7 +412,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -350,7 +425,7 @@ public class UpdaterService extends Service {
                 String text = getString(R.string.verifying_download_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setTicker(text);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 break;
             }
             case VERIFIED: {
@@ -363,7 +438,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -377,7 +452,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -399,9 +474,10 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                startForeground(NOTIFICATION_ID, mNotificationBuilder.build(),
+                Notification notification = mNotificationBuilder.build();
+                startForeground(NOTIFICATION_ID, notification,
                         ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(notification);
                 break;
             }
             case INSTALLED: {
@@ -418,7 +494,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
 
                 SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
                 boolean deleteUpdate = pref.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
@@ -441,7 +517,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -465,45 +541,143 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                postNotification(mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
         }
     }
 
-    private void handleDownloadProgressChange(UpdateInfo update) {
-        int progress = update.getProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
+    private boolean isNewRevision(UpdateInfo update) {
+        if (update == null) {
+            return false;
+        }
+        if (update.getDownloadId().equals(mShownDownloadId) &&
+                update.getRevision() == mShownRevision) {
+            return false;
+        }
+        mShownDownloadId = update.getDownloadId();
+        mShownRevision = update.getRevision();
+        return true;
+    }
+
+    private void scheduleProgressNotification(ProgressEventBus.Type type,
+            String downloadId) {
+        mPendingProgressType = type;
+        mPendingProgressId = downloadId;
+        if (mProgressNotificationScheduled) {
+            return;
+        }
+        mProgressNotificationScheduled = true;
+        long delay = mLastNotificationTime + PROGRESS_NOTIFICATION_INTERVAL_MS -
+                SystemClock.uptimeMillis();
+        mHandler.postDelayed(mProgressNotificationRunnable, Math.max(0, delay));
+    }
 
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        mNotificationStyle.setSummaryText(percent);
+    private void showPendingProgress() {
+        mProgressNotificationScheduled = false;
+        ProgressEventBus.Type type = mPendingProgressType;
+        mPendingProgressType = null;
+        if (type == null) {
+            return;
+        }
+        // Read the update now, the progress kept changing while waiting
+        UpdateInfo update = mUpdaterController.getUpdate(mPendingProgressId);
+        if (!isNewRevision(update)) {
+            return;
+        }
+        switch (type) {
+            case DOWNLOAD:
+                handleDownloadProgressChange(update);
+                break;
+            case VERIFICATION:
+                handleVerificationProgressChange(update);
+                break;
+            case INSTALL:
+                handleInstallProgress(update);
+                break;
+        }
+    }
 
+    private void handleDownloadProgressChange(UpdateInfo update) {
         setNotificationTitle(update);
+        String text = getSpeedText(R.string.text_download_speed, update.getSpeed(),
+                update.getEta());
+        showProgress(update.getProgress(), text);
+    }
 
-        String speed = Formatter.formatFileSize(this, update.getSpeed());
-        CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
-        mNotificationStyle.bigText(
-                getString(R.string.text_download_speed, eta, speed));
-
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    private void handleVerificationProgressChange(UpdateInfo update) {
+        setNotificationTitle(update);
+        String text = update.getVerificationEta() < 0 ?
+                getString(R.string.verifying_download_notification) :
+                getSpeedText(R.string.text_verification_speed,
+                        update.getVerificationSpeed(), update.getVerificationEta());
+        showProgress(update.getVerificationProgress(), text);
     }
 
     private void handleInstallProgress(UpdateInfo update) {
         setNotificationTitle(update);
-        int progress = update.getInstallProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        mNotificationStyle.setSummaryText(percent);
         boolean notAB = UpdateInstaller.isInstalling();
-        mNotificationStyle.bigText(notAB ? getString(R.string.dialog_prepare_zip_message) :
+        String text = notAB ? getString(R.string.dialog_prepare_zip_message) :
                 update.getFinalizing() ?
                         getString(R.string.finalizing_package) :
-                        getString(R.string.preparing_ota_first_boot));
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                        getString(R.string.preparing_ota_first_boot);
+        showProgress(update.getInstallProgress(), text);
+    }
+
+    private void showProgress(int progress, String text) {
+        if (progress == mPostedProgress && TextUtils.equals(text, mPostedText)) {
+            return;
+        }
+        mPostedProgress = progress;
+        mPostedText = text;
+        mNotificationBuilder.setProgress(100, progress, false);
+        mNotificationStyle.setSummaryText(getPercentText(progress));
+        mNotificationStyle.bigText(text);
+        postNotification(mNotificationBuilder.build());
+    }
+
+    private void postNotification(Notification notification) {
+        mLastNotificationTime = SystemClock.uptimeMillis();
+        mNotificationManager.notify(NOTIFICATION_ID, notification);
+    }
+
+    private String getPercentText(int progress) {
+        if (progress != mPercentValue) {
+            mPercentValue = progress;
+            mPercentText = NumberFormat.getPercentInstance().format(progress / 100.f);
+        }
+        return mPercentText;
+    }
+
+    private String getSpeedText(int resId, long speed, long eta) {
+        long shownSpeed = roundForDisplay(speed);
+        if (resId != mSpeedTextRes || shownSpeed != mSpeedTextSpeed || eta != mSpeedTextEta) {
+            mSpeedTextRes = resId;
+            mSpeedTextSpeed = shownSpeed;
+            mSpeedTextEta = eta;
+            mSpeedText = getString(resId, StringGenerator.formatETA(this, eta * 1000),
+                    Formatter.formatFileSize(this, shownSpeed));
+        }
+        return mSpeedText;
+    }
+
+    // Sizes are formatted with three significant digits at most
+    private static long roundForDisplay(long bytes) {
+        long scale = 1;
+        while (bytes / scale >= 1000) {
+            scale *= 10;
+        }
+        return (bytes + scale / 2) / scale * scale;
     }
 
     private void setNotificationTitle(UpdateInfo update) {
+        if (update.getDownloadId().equals(mTitleDownloadId) &&
+                update.getTimestamp() == mTitleTimestamp) {
+            return;
+        }
+        mTitleDownloadId = update.getDownloadId();
+        mTitleTimestamp = update.getTimestamp();
         String buildDate = StringGenerator.getDateLocalizedUTC(this,
                 DateFormat.MEDIUM, update.getTimestamp());
         String buildInfo = getString(R.string.list_build_version_date,
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.rising.updater.UpdatesDbHelper;
+import com.rising.updater.misc.BackgroundExecutor;
+import com.rising.updater.model.DownloadState;
+import com.rising.updater.model.Update;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the changes to the updates database in the background. Changes to the
+ * same update made before the next write are merged, and all the pending changes
+ * are written in a single transaction shortly after the first one.
+ */
+class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    private static final long FLUSH_DELAY_MS = 500;
+
+    private static class PendingWrite {
+        // Row to insert, null if only the status or the download state change
+        Update mUpdate;
+        int mConflictAlgorithm;
+        int mStatus;
+        boolean mStatusChanged;
+        DownloadState mState;
+        boolean mStateChanged;
+        boolean mRemove;
+
+        // Apply the changes of a newer write that doesn't replace the row
+        void merge(PendingWrite newer) {
+            if (newer.mStatusChanged) {
+                if (mUpdate != null) {
+                    mUpdate.setPersistentStatus(newer.mStatus);
+                }
+                mStatus = newer.mStatus;
+                mStatusChanged = true;
+            }
+            if (newer.mStateChanged) {
+                mState = newer.mState;
+                mStateChanged = true;
+            }
+        }
+    }
+
+    private final UpdatesDbHelper mDbHelper;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = () -> BackgroundExecutor.getInstance()
+            .execute(BackgroundExecutor.Pool.IO, this::flush);
+
+    private final Object mFlushLock = new Object();
+    private Map<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    UpdatesDbWriter(UpdatesDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
+        // Copy now, the update keeps changing until the write
+        Update copy = new Update(update);
+        synchronized (this) {
+            PendingWrite write = getPendingWrite(update.getDownloadId());
+            write.mUpdate = copy;
+            write.mConflictAlgorithm = conflictAlgorithm;
+            write.mRemove = false;
+        }
+    }
+
+    void changeUpdateStatus(Update update) {
+        final int status = update.getPersistentStatus();
+        synchronized (this) {
+            PendingWrite write = getPendingWrite(update.getDownloadId());
+            if (write.mRemove) {
+                // There's no row to change
+                return;
+            }
+            if (write.mUpdate != null) {
+                write.mUpdate.setPersistentStatus(status);
+            }
+            write.mStatus = status;
+            write.mStatusChanged = true;
+        }
+    }
+
+    /**
+     * @param state the state of the download, null to forget it
+     */
+    void changeDownloadState(String downloadId, DownloadState state) {
+        synchronized (this) {
+            PendingWrite write = getPendingWrite(downloadId);
+            if (write.mRemove) {
+                return;
+            }
+            write.mState = state;
+            write.mStateChanged = true;
+        }
+    }
+
+    void removeUpdate(String downloadId) {
+        synchronized (this) {
+            PendingWrite write = getPendingWrite(downloadId);
+            write.mUpdate = null;
+            write.mStatusChanged = false;
+            write.mState = null;
+            write.mStateChanged = false;
+            write.mRemove = true;
+        }
+    }
+
+    private PendingWrite getPendingWrite(String downloadId) {
+        PendingWrite write = mPending.get(downloadId);
+        if (write == null) {
+            write = new PendingWrite();
+            mPending.put(downloadId, write);
+        }
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+        return write;
+    }
+
+    synchronized boolean hasPendingWrites() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Write the pending changes now and make sure they reached the storage.
+     * Blocks until done, meant to be called before changes must not be lost.
+     */
+    void flushAndSync() {
+        flush();
+        synchronized (mFlushLock) {
+            // Move the log into the database, syncing both
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            try (Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null)) {
+                cursor.moveToFirst();
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not checkpoint the database", e);
+            }
+        }
+    }
+
+    /**
+     * Write the pending changes now.
+     */
+    void flush() {
+        // Writes happen one at a time, so that they reach the database in order
+        synchronized (mFlushLock) {
+            Map<String, PendingWrite> writes;
+            synchronized (this) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                writes = mPending;
+                mPending = new LinkedHashMap<>();
+            }
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            try {
+                db.beginTransaction();
+                try {
+                    for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                        write(entry.getKey(), entry.getValue());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not write " + writes.size() + " changes", e);
+                requeue(writes);
+            }
+        }
+    }
+
+    private void write(String downloadId, PendingWrite write) {
+        if (write.mRemove) {
+            mDbHelper.removeUpdate(downloadId);
+            return;
+        }
+        if (write.mUpdate != null) {
+            mDbHelper.addUpdateWithOnConflict(write.mUpdate, write.mConflictAlgorithm);
+        } else if (write.mStatusChanged) {
+            mDbHelper.changeUpdateStatus(downloadId, write.mStatus);
+        }
+        if (write.mStateChanged) {
+            mDbHelper.changeDownloadState(downloadId, write.mState);
+        }
+    }
+
+    private void requeue(Map<String, PendingWrite> writes) {
+        synchronized (this) {
+            for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                PendingWrite older = entry.getValue();
+                PendingWrite newer = mPending.get(entry.getKey());
+                if (newer == null) {
+                    mPending.put(entry.getKey(), older);
+                } else if (!newer.mRemove && newer.mUpdate == null && !older.mRemove) {
+                    // The row wasn't replaced in the meantime, keep the older changes
+                    older.merge(newer);
+                    mPending.put(entry.getKey(), older);
+                }
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+    }
+}
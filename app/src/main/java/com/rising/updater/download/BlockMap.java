@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * SHA-256 hashes of the fixed size blocks of a package, published by the server next
+ * to the package at the same URL followed by {@link #EXT}:
+ * <pre>
+ * {
+ *   "block_size": 1048576,
+ *   "size": 1234567890,
+ *   "blocks": ["&lt;sha256 of block 0&gt;", "&lt;sha256 of block 1&gt;", ...]
+ * }
+ * </pre>
+ * A detached signature of the block map can be published next to it, at the same URL
+ * followed by {@link #SIGNATURE_EXT}.
+ */
+public class BlockMap {
+
+    public static final String EXT = ".blockmap";
+    public static final String SIGNATURE_EXT = ".sig";
+
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_DOWNLOAD_SIZE = 4 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final int mBlockSize;
+    private final long mSize;
+    private final String[] mBlocks;
+
+    private BlockMap(int blockSize, long size, String[] blocks) {
+        mBlockSize = blockSize;
+        mSize = size;
+        mBlocks = blocks;
+    }
+
+    public static BlockMap parse(byte[] content) throws JSONException {
+        JSONObject object = new JSONObject(new String(content, StandardCharsets.UTF_8));
+        int blockSize = object.getInt("block_size");
+        long size = object.getLong("size");
+        JSONArray blocksArray = object.getJSONArray("blocks");
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || size <= 0 ||
+                blocksArray.length() != (size + blockSize - 1) / blockSize) {
+            throw new JSONException("Inconsistent block map");
+        }
+        String[] blocks = new String[blocksArray.length()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = blocksArray.getString(i).toLowerCase(Locale.ROOT);
+        }
+        return new BlockMap(blockSize, size, blocks);
+    }
+
+    /**
+     * Download a small file, such as a block map or its signature.
+     */
+    public static byte[] download(String url) throws IOException {
+        HttpURLConnection client =
+                (HttpURLConnection) DownloadClient.requireHttps(url).openConnection();
+        try {
+            client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            int responseCode = client.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream inputStream = client.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = inputStream.read(buffer)) > 0) {
+                    content.write(buffer, 0, count);
+                    if (content.size() > MAX_DOWNLOAD_SIZE) {
+                        throw new IOException(url + " is too big");
+                    }
+                }
+            }
+            return content.toByteArray();
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public int getBlockCount() {
+        return mBlocks.length;
+    }
+
+    public String getBlockHash(int block) {
+        return mBlocks[block];
+    }
+
+    public long getBlockOffset(int block) {
+        return (long) block * mBlockSize;
+    }
+
+    public int getBlockLength(int block) {
+        return (int) Math.min(mBlockSize, mSize - getBlockOffset(block));
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.rising.updater.misc.FileUtils;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Download client that rebuilds a package from the blocks it shares with an older
+ * package and only downloads the blocks that changed, as listed by the {@link BlockMap}
+ * of the package. If there's no block map, the package is downloaded in full.
+ */
+class DeltaDownloadClient implements DownloadClient {
+
+    private static final String TAG = "DeltaDownloadClient";
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final String mUrl;
+    private final File mDestination;
+    private final File mBasePackage;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final long mProgressIntervalMs;
+    private final ThroughputEstimator mThroughputEstimator;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final List<String> mPeerUrls;
+    private final String mMirrorUrl;
+    private final String mValidator;
+    private final long mResumeOffset;
+    private final long mExpectedSize;
+
+    private DownloadThread mDownloadThread;
+    private DownloadClient mFallbackClient;
+
+    DeltaDownloadClient(String url, File destination, File basePackage,
+            DownloadClient.ProgressListener progressListener, long progressIntervalMs,
+            ThroughputEstimator throughputEstimator, DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, List<String> peerUrls, String mirrorUrl,
+            String validator, long resumeOffset, long expectedSize) {
+        mUrl = url;
+        mDestination = destination;
+        mBasePackage = basePackage;
+        mProgressListener = progressListener;
+        mProgressIntervalMs = progressIntervalMs;
+        mThroughputEstimator = throughputEstimator;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+        mPeerUrls = peerUrls;
+        mMirrorUrl = mirrorUrl;
+        mValidator = validator;
+        mResumeOffset = resumeOffset;
+        mExpectedSize = expectedSize;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        mDownloadThread = new DownloadThread(false);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        if (mFallbackClient != null) {
+            mFallbackClient.cancel();
+        } else {
+            mDownloadThread.interrupt();
+        }
+        mDownloadThread = null;
+    }
+
+    private synchronized void startFallback(DownloadThread thread, boolean resume) {
+        if (mDownloadThread != thread) {
+            // Cancelled in the meantime
+            mCallback.onFailure(true);
+            return;
+        }
+        try {
+            mFallbackClient = new HttpURLConnectionClient(mUrl, mDestination, mProgressListener,
+                    mProgressIntervalMs, mThroughputEstimator, mCallback, mUseDuplicateLinks,
+                    mPeerUrls, mMirrorUrl, mValidator, mResumeOffset);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create download client", e);
+            mCallback.onFailure(false);
+            return;
+        }
+        if (resume) {
+            mFallbackClient.resume();
+        } else {
+            mFallbackClient.start();
+        }
+    }
+
+    /**
+     * The server ignored the range of a request, the blocks can't be fetched from it.
+     */
+    private static class RangeNotSupportedException extends IOException {
+        RangeNotSupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private class DownloadThread extends Thread {
+
+        private final boolean mResume;
+        private final MessageDigest mDigest;
+        private ByteBuffer mBuffer;
+        private FileDescriptor mDestinationFd;
+
+        private final ProgressSampler mProgressSampler;
+
+        private BlockMap mBlockMap;
+        private long mBytesWritten;
+        private long mBytesFetched;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+            mProgressSampler = new ProgressSampler(mProgressListener, mProgressIntervalMs,
+                    mThroughputEstimator);
+            try {
+                mDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBlockMap = BlockMap.parse(BlockMap.download(mUrl + BlockMap.EXT));
+            } catch (IOException | JSONException e) {
+                Log.d(TAG, "No usable block map, downloading the full package", e);
+                startFallback(this, mResume);
+                return;
+            }
+            if (mExpectedSize > 0 && mBlockMap.getSize() != mExpectedSize) {
+                Log.e(TAG, "The block map is for " + mBlockMap.getSize() + " bytes, expected " +
+                        mExpectedSize + ", downloading the full package");
+                startFallback(this, mResume);
+                return;
+            }
+
+            mCallback.onResponse(name -> "Content-Length".equalsIgnoreCase(name) ?
+                    String.valueOf(mBlockMap.getSize()) : null);
+            mBuffer = ByteBuffer.allocateDirect(mBlockMap.getBlockSize());
+
+            try (RandomAccessFile destination = new RandomAccessFile(mDestination, "rw")) {
+                Map<String, Long> baseBlocks = indexBasePackage();
+
+                // Blocks are written in order and checked individually, so anything
+                // before the last complete block is valid
+                long length = destination.length();
+                if (mResumeOffset >= 0) {
+                    length = Math.min(mResumeOffset, length);
+                }
+                int firstBlock = mResume ? (int) (length / mBlockMap.getBlockSize()) : 0;
+                destination.setLength(mBlockMap.getBlockOffset(firstBlock));
+                mBytesWritten = destination.length();
+                FileAllocator.allocate(destination, mBlockMap.getSize());
+                mDestinationFd = destination.getFD();
+                try {
+                    // Copied blocks cost next to nothing, so the speed and the remaining
+                    // time only account for the blocks fetched from the network
+                    mProgressSampler.start(mBytesWritten, mBlockMap.getSize(),
+                            getCopiedBytes(baseBlocks, firstBlock));
+
+                    FileChannel destinationChannel = destination.getChannel();
+                    destinationChannel.position(mBytesWritten);
+                    try (FileChannel baseChannel = new FileInputStream(mBasePackage).getChannel()) {
+                        int block = firstBlock;
+                        while (block < mBlockMap.getBlockCount()) {
+                            if (isInterrupted()) {
+                                throw new InterruptedIOException();
+                            }
+                            Long baseOffset = baseBlocks.get(mBlockMap.getBlockHash(block));
+                            if (baseOffset != null) {
+                                copyBlock(baseChannel, baseOffset, destinationChannel, block);
+                                block++;
+                            } else {
+                                int end = block + 1;
+                                while (end < mBlockMap.getBlockCount() &&
+                                        !baseBlocks.containsKey(mBlockMap.getBlockHash(end))) {
+                                    end++;
+                                }
+                                fetchBlocks(destinationChannel, block, end);
+                                block = end;
+                            }
+                        }
+                    }
+                    mProgressSampler.sync(mDestinationFd);
+                } finally {
+                    // Resuming relies on the length of the file
+                    FileAllocator.truncate(destination, mBytesWritten);
+                }
+                Log.d(TAG, "Downloaded " + mBytesFetched + " of " + mBlockMap.getSize() + " bytes");
+                mProgressSampler.flush();
+                mCallback.onSuccess();
+            } catch (RangeNotSupportedException e) {
+                // The blocks written so far are kept until the full download overwrites them
+                Log.d(TAG, e.getMessage() + ", downloading the full package");
+                startFallback(this, false);
+            } catch (IOException e) {
+                if (!isInterrupted()) {
+                    Log.e(TAG, "Error downloading file", e);
+                }
+                mCallback.onFailure(isInterrupted());
+            }
+        }
+
+        private Map<String, Long> indexBasePackage() throws IOException {
+            Map<String, Long> blocks = new HashMap<>();
+            try (FileChannel channel = new FileInputStream(mBasePackage).getChannel()) {
+                long offset = 0;
+                while (true) {
+                    if (isInterrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                    mBuffer.clear();
+                    mBuffer.limit(mBlockMap.getBlockSize());
+                    while (mBuffer.hasRemaining() && channel.read(mBuffer) > 0) ;
+                    mBuffer.flip();
+                    if (!mBuffer.hasRemaining()) {
+                        break;
+                    }
+                    mDigest.update(mBuffer);
+                    blocks.putIfAbsent(FileUtils.toHexString(mDigest.digest()), offset);
+                    offset += mBuffer.limit();
+                }
+            }
+            return blocks;
+        }
+
+        /**
+         * @return the bytes of the blocks from the given one on that are in the base package
+         */
+        private long getCopiedBytes(Map<String, Long> baseBlocks, int firstBlock) {
+            long bytes = 0;
+            for (int block = firstBlock; block < mBlockMap.getBlockCount(); block++) {
+                if (baseBlocks.containsKey(mBlockMap.getBlockHash(block))) {
+                    bytes += mBlockMap.getBlockLength(block);
+                }
+            }
+            return bytes;
+        }
+
+        private void copyBlock(FileChannel baseChannel, long baseOffset,
+                FileChannel destinationChannel, int block) throws IOException {
+            final long startMillis = SystemClock.elapsedRealtime();
+            int length = mBlockMap.getBlockLength(block);
+            mBuffer.clear();
+            mBuffer.limit(length);
+            while (mBuffer.hasRemaining()) {
+                if (baseChannel.read(mBuffer, baseOffset + mBuffer.position()) < 0) {
+                    throw new IOException("Base package changed");
+                }
+            }
+            writeBlock(destinationChannel, block);
+            mProgressSampler.updateCopied(mBytesWritten, length, startMillis);
+            mProgressSampler.syncIfDue(mDestinationFd);
+        }
+
+        private void fetchBlocks(FileChannel destinationChannel, int firstBlock, int endBlock)
+                throws IOException {
+            long start = mBlockMap.getBlockOffset(firstBlock);
+            long end = mBlockMap.getBlockOffset(endBlock - 1) +
+                    mBlockMap.getBlockLength(endBlock - 1) - 1;
+            HttpURLConnection client = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                client.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                int responseCode = client.getResponseCode();
+                String contentRange = client.getHeaderField("Content-Range");
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL || contentRange == null ||
+                        !contentRange.startsWith("bytes " + start + "-")) {
+                    throw new RangeNotSupportedException(
+                            "The server can't fulfil partial content requests");
+                }
+                try (InputStream inputStream = client.getInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int block = firstBlock; block < endBlock; block++) {
+                        int length = mBlockMap.getBlockLength(block);
+                        mBuffer.clear();
+                        mBuffer.limit(length);
+                        while (mBuffer.hasRemaining()) {
+                            if (isInterrupted()) {
+                                throw new InterruptedIOException();
+                            }
+                            int count = inputStream.read(buffer, 0,
+                                    Math.min(buffer.length, mBuffer.remaining()));
+                            if (count < 0) {
+                                throw new IOException("Unexpected end of stream");
+                            }
+                            mBuffer.put(buffer, 0, count);
+                            mBytesFetched += count;
+                        }
+                        writeBlock(destinationChannel, block);
+                        mProgressSampler.update(mBytesWritten);
+                        mProgressSampler.syncIfDue(mDestinationFd);
+                    }
+                }
+            } finally {
+                client.disconnect();
+            }
+        }
+
+        private void writeBlock(FileChannel destinationChannel, int block) throws IOException {
+            mBuffer.flip();
+            mDigest.update(mBuffer.duplicate());
+            String hash = FileUtils.toHexString(mDigest.digest());
+            if (!hash.equals(mBlockMap.getBlockHash(block))) {
+                throw new IOException("Checksum mismatch for block " + block);
+            }
+            while (mBuffer.hasRemaining()) {
+                destinationChannel.write(mBuffer);
+            }
+            mBytesWritten += mBlockMap.getBlockLength(block);
+        }
+    }
+}
@@ -17,6 +17,9 @@ package com.rising.updater.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface DownloadClient {
 
@@ -30,10 +33,24 @@ public interface DownloadClient {
 
     interface ProgressListener {
         void update(long bytesRead, long contentLength, long speed, long eta);
+
+        /**
+         * The given bytes reached the storage, so the download can resume from there
+         * even if the app is killed. Reported less often than the progress.
+         */
+        default void onSynced(long bytesSynced) {
+        }
     }
 
     interface Headers {
         String get(String name);
+
+        /**
+         * @return the URL the file is downloaded from, after redirects, or null if unknown
+         */
+        default String getUrl() {
+            return null;
+        }
     }
 
     /**
@@ -54,12 +71,32 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Cleartext traffic is allowed for the peers of the local network, whose addresses
+     * can't be listed in the network security config. Anything else must use HTTPS.
+     */
+    static URL requireHttps(String url) throws IOException {
+        URL parsed = new URL(url);
+        if (!"https".equals(parsed.getProtocol())) {
+            throw new IOException("Cleartext URLs are only allowed for peers: " + url);
+        }
+        return parsed;
+    }
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
+        private long mProgressIntervalMs = ProgressSampler.DEFAULT_INTERVAL_MS;
+        private ThroughputEstimator mThroughputEstimator;
         private boolean mUseDuplicateLinks;
+        private List<String> mPeerUrls = new ArrayList<>();
+        private File mDeltaBase;
+        private String mMirrorUrl;
+        private String mValidator;
+        private long mResumeOffset = -1;
+        private long mExpectedSize = -1;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -69,8 +106,18 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            requireHttps(mUrl);
+            if (mMirrorUrl != null) {
+                requireHttps(mMirrorUrl);
+            }
+            if (mDeltaBase != null) {
+                return new DeltaDownloadClient(mUrl, mDestination, mDeltaBase, mProgressListener,
+                        mProgressIntervalMs, mThroughputEstimator, mCallback, mUseDuplicateLinks,
+                        mPeerUrls, mMirrorUrl, mValidator, mResumeOffset, mExpectedSize);
+            }
+            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener,
+                    mProgressIntervalMs, mThroughputEstimator, mCallback, mUseDuplicateLinks,
+                    mPeerUrls, mMirrorUrl, mValidator, mResumeOffset);
         }
 
         public Builder setUrl(String url) {
@@ -93,9 +140,83 @@ public interface DownloadClient {
             return this;
         }
 
+        /**
+         * Set the minimum time between two calls to the progress listener. The last
+         * value is always reported.
+         */
+        public Builder setProgressInterval(long intervalMs) {
+            mProgressIntervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * Set the estimator of the download speed. Reusing the estimator of a previous
+         * attempt keeps the speed and the remaining time stable when resuming.
+         */
+        public Builder setThroughputEstimator(ThroughputEstimator estimator) {
+            mThroughputEstimator = estimator;
+            return this;
+        }
+
+        /**
+         * Set the URL a previous attempt downloaded the file from. It's tried after
+         * the peers and before the download URL.
+         */
+        public Builder setMirrorUrl(String mirrorUrl) {
+            mMirrorUrl = mirrorUrl;
+            return this;
+        }
+
+        /**
+         * Set the ETag or the modification date the server sent for the partial file.
+         * When resuming, the download starts over if the file changed on the server.
+         */
+        public Builder setValidator(String validator) {
+            mValidator = validator;
+            return this;
+        }
+
+        /**
+         * Set the bytes known to be downloaded, when resuming. Files are allocated
+         * before being written, so a download that was killed may leave a file longer
+         * than that. By default, the whole file is assumed to be downloaded.
+         */
+        public Builder setResumeOffset(long offset) {
+            mResumeOffset = offset;
+            return this;
+        }
+
+        /**
+         * Set the size the downloaded file must have, if known. A block map for a file
+         * of a different size isn't used.
+         */
+        public Builder setExpectedSize(long size) {
+            mExpectedSize = size;
+            return this;
+        }
+
         public Builder setUseDuplicateLinks(boolean useDuplicateLinks) {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Set mirrors on the local network to try, in order, before the given URL.
+         * Unlike duplicate links sent by the server, these can use plain HTTP.
+         */
+        public Builder setPeerUrls(List<String> peerUrls) {
+            mPeerUrls = peerUrls;
+            return this;
+        }
+
+        /**
+         * Set an older package to reuse the unchanged blocks of. Only the blocks that
+         * differ are downloaded if the server publishes a block map for the package,
+         * otherwise the whole package is.
+         */
+        public Builder setDeltaBase(File basePackage) {
+            mDeltaBase = basePackage;
+            return this;
+        }
     }
 }
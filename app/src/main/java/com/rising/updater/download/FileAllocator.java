@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Allocates the blocks of a file before it's written, so that they're mostly
+ * contiguous and so that running out of space is noticed before downloading.
+ * The length of an allocated file is its final length, so whoever writes it has to
+ * truncate it to the bytes actually written when stopping.
+ */
+final class FileAllocator {
+
+    private static final String TAG = "FileAllocator";
+
+    private FileAllocator() {
+    }
+
+    /**
+     * Allocate the blocks past the end of the file, up to the given length.
+     */
+    static void allocate(RandomAccessFile file, long length) throws IOException {
+        final long offset = file.length();
+        if (length <= offset) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), offset, length - offset);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS) {
+                throw e.rethrowAsIOException();
+            }
+            // Blocks are then allocated as they're written
+            Log.w(TAG, "Allocation not supported, extending the file instead");
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Release the blocks allocated past the given length.
+     */
+    static void truncate(RandomAccessFile file, long length) {
+        try {
+            if (file.length() > length) {
+                file.setLength(length);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not truncate the file", e);
+        }
+    }
+}
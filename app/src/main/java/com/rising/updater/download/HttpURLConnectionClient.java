@@ -15,15 +15,14 @@
  */
 package com.rising.updater.download;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Comparator;
 import java.util.List;
@@ -36,12 +35,21 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    private static final int PEER_CONNECT_TIMEOUT_MS = 2000;
+    private static final int MIRROR_CONNECT_TIMEOUT_MS = 5000;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
+    private final long mProgressIntervalMs;
+    private final ThroughputEstimator mThroughputEstimator;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final List<String> mPeerUrls;
+    private final String mMirrorUrl;
+    private final String mValidator;
+    private final long mResumeOffset;
 
     private DownloadThread mDownloadThread;
 
@@ -51,17 +59,29 @@ public class HttpURLConnectionClient implements DownloadClient {
             return mClient.getHeaderField(name);
         }
 
+        @Override
+        public String getUrl() {
+            return mClient.getURL().toString();
+        }
+
     }
 
     HttpURLConnectionClient(String url, File destination,
-            DownloadClient.ProgressListener progressListener,
-            DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
+            DownloadClient.ProgressListener progressListener, long progressIntervalMs,
+            ThroughputEstimator throughputEstimator, DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, List<String> peerUrls, String mirrorUrl,
+            String validator, long resumeOffset) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
+        mProgressIntervalMs = progressIntervalMs;
+        mThroughputEstimator = throughputEstimator;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mPeerUrls = peerUrls;
+        mMirrorUrl = mirrorUrl;
+        mValidator = validator;
+        mResumeOffset = resumeOffset;
     }
 
     @Override
@@ -97,11 +117,22 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
+        long offset = getResumeOffset();
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        if (mValidator != null) {
+            // Get the whole file instead if it changed on the server
+            mClient.setRequestProperty("If-Range", mValidator);
+        }
         downloadFileInternalCommon(true);
     }
 
+    // Anything past the given offset may have been left by an attempt that was killed
+    // with its file allocated
+    private long getResumeOffset() {
+        long length = mDestination.length();
+        return mResumeOffset >= 0 ? Math.min(mResumeOffset, length) : length;
+    }
+
     private void downloadFileInternalCommon(boolean resume) {
         if (mDownloadThread != null) {
             Log.wtf(TAG, "Already downloading");
@@ -129,58 +160,26 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
-
         private final boolean mResume;
+        private final ProgressSampler mProgressSampler;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
-        }
-
-        private void calculateSpeed(boolean justResumed) {
-            final long millis = SystemClock.elapsedRealtime();
-            if (justResumed) {
-                // If we don't start over with these after resumption, we get huge numbers for
-                // ETA since the delta will grow, resulting in a very low speed
-                mLastMillis = millis;
-                mSpeed = -1; // we don't want the moving avg with values from who knows when
-
-                // need to do this as well, otherwise the second time we call calculateSpeed(),
-                // the difference (mTotalBytesRead - mCurSampleBytes) will be larger than expected,
-                // resulting in a higher speed calculation
-                mCurSampleBytes = mTotalBytesRead;
-                return;
-            }
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
-                }
-
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
-            }
-        }
-
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
-            }
+            mProgressSampler = new ProgressSampler(mProgressListener, mProgressIntervalMs,
+                    mThroughputEstimator);
         }
 
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
+            String ifRange = mClient.getRequestProperty("If-Range");
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
+            if (ifRange != null) {
+                mClient.setRequestProperty("If-Range", ifRange);
+            }
         }
 
         private void handleDuplicateLinks() throws IOException {
@@ -253,25 +252,81 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
-        @Override
-        public void run() {
-            boolean justResumed = false;
+        private boolean tryAlternativeUrls() {
+            URL originUrl = mClient.getURL();
+            for (String peerUrl : mPeerUrls) {
+                if (isInterrupted()) {
+                    break;
+                }
+                if (tryUrl(peerUrl, PEER_CONNECT_TIMEOUT_MS)) {
+                    Log.d(TAG, "Downloading from peer " + peerUrl);
+                    return true;
+                }
+            }
+            if (mMirrorUrl != null && !isInterrupted() &&
+                    tryUrl(mMirrorUrl, MIRROR_CONNECT_TIMEOUT_MS)) {
+                Log.d(TAG, "Downloading from previous mirror " + mMirrorUrl);
+                return true;
+            }
             try {
-                mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                changeClientUrl(originUrl);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not restore origin URL", e);
+            }
+            return false;
+        }
+
+        private boolean tryUrl(String url, int connectTimeout) {
+            try {
+                return tryUrl(new URL(url), connectTimeout);
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Invalid URL " + url, e);
+                return false;
+            }
+        }
+
+        private boolean tryUrl(URL url, int connectTimeout) {
+            try {
+                changeClientUrl(url);
+                mClient.setInstanceFollowRedirects(false);
+                mClient.setConnectTimeout(connectTimeout);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
+                if (isSuccessCode(responseCode)) {
+                    return true;
+                }
+                Log.d(TAG, url + " replied with " + responseCode);
+            } catch (IOException e) {
+                Log.d(TAG, url + " not reachable", e);
+            }
+            return false;
+        }
 
-                if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
-                    handleDuplicateLinks();
+        @Override
+        public void run() {
+            try {
+                int responseCode;
+                if ((!mPeerUrls.isEmpty() || mMirrorUrl != null) && tryAlternativeUrls()) {
+                    responseCode = mClient.getResponseCode();
+                } else {
+                    mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                    mClient.connect();
                     responseCode = mClient.getResponseCode();
+
+                    if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
+                        handleDuplicateLinks();
+                        responseCode = mClient.getResponseCode();
+                    }
                 }
 
                 mCallback.onResponse(new Headers());
 
                 if (mResume && isPartialContentCode(responseCode)) {
-                    justResumed = true;
-                    mTotalBytesRead = mDestination.length();
+                    mTotalBytesRead = getResumeOffset();
                     Log.d(TAG, "The server fulfilled the partial content request");
+                } else if (mResume && mValidator != null && isSuccessCode(responseCode)) {
+                    // The If-Range condition failed, the server sent the new file
+                    Log.d(TAG, "The file changed on the server, starting over");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
                     mCallback.onFailure(isInterrupted());
@@ -280,26 +335,34 @@ public class HttpURLConnectionClient implements DownloadClient {
 
                 try (
                         InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
+                        RandomAccessFile destination = new RandomAccessFile(mDestination, "rw")
                 ) {
-                    mTotalBytes = mClient.getContentLengthLong() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                    long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength >= 0 ? contentLength + mTotalBytesRead : -1;
+                    destination.setLength(mTotalBytesRead);
+                    try {
+                        if (mTotalBytes > 0) {
+                            // Appending small writes fragments the file a lot
+                            FileAllocator.allocate(destination, mTotalBytes);
                         }
+                        destination.seek(mTotalBytesRead);
+                        // Don't average the speed with values measured before resuming
+                        mProgressSampler.start(mTotalBytesRead, mTotalBytes);
+                        byte[] b = new byte[8192];
+                        int count;
+                        while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
+                            destination.write(b, 0, count);
+                            mTotalBytesRead += count;
+                            mProgressSampler.update(mTotalBytesRead);
+                            mProgressSampler.syncIfDue(destination.getFD());
+                        }
+                        mProgressSampler.flush();
+                    } finally {
+                        // Resuming relies on the length of the file
+                        FileAllocator.truncate(destination, mTotalBytesRead);
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                    }
-
-                    outputStream.flush();
+                    // Not interruptible, unlike the channel of the file
+                    mProgressSampler.sync(destination.getFD());
 
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal HTTP/1.1 server used to share already verified packages with other devices
+ * of the local network. Packages are requested as /&lt;download id&gt; and single byte
+ * ranges are supported, so that peers can resume interrupted downloads.
+ */
+public class PeerServer {
+
+    private static final String TAG = "PeerServer";
+
+    static final int MAX_CONNECTIONS = 4;
+    private static final int SOCKET_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern REQUEST_LINE =
+            Pattern.compile("(GET|HEAD) /([^ ?]+) HTTP/1\\.[01]");
+    private static final Pattern RANGE = Pattern.compile("bytes=([0-9]*)-([0-9]*)");
+
+    public interface PackageProvider {
+        /**
+         * @return the verified package with the given id, or null if there's none
+         */
+        File getPackage(String downloadId);
+    }
+
+    private final PackageProvider mProvider;
+    private ExecutorService mExecutor;
+
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    public PeerServer(PackageProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Start listening on the given address and port, 0 to pick any free port.
+     * Only the address of the local network should be given, so that packages
+     * aren't served on any other interface.
+     *
+     * @return the port the server is listening on
+     */
+    public synchronized int start(InetAddress address, int port) throws IOException {
+        if (mServerSocket != null) {
+            return mServerSocket.getLocalPort();
+        }
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(address, port));
+        // Nothing is queued, connections beyond the limit are closed right away
+        mExecutor = new ThreadPoolExecutor(1, MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<>());
+        final ServerSocket serverSocket = mServerSocket;
+        final ExecutorService executor = mExecutor;
+        mAcceptThread = new Thread(() -> acceptLoop(serverSocket, executor), TAG);
+        mAcceptThread.start();
+        Log.d(TAG, "Listening on " + serverSocket.getLocalSocketAddress());
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close server socket", e);
+        }
+        mServerSocket = null;
+        mAcceptThread = null;
+        mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerSocket != null;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket, ExecutorService executor) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    executor.execute(() -> handleConnection(socket));
+                } catch (RejectedExecutionException e) {
+                    Log.d(TAG, "Too many connections, closing " +
+                            socket.getRemoteSocketAddress());
+                    closeQuietly(socket);
+                }
+            } catch (SocketException e) {
+                // Closed by stop()
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not accept connection", e);
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(SOCKET_TIMEOUT_MS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream outputStream = s.getOutputStream();
+
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            for (String line; (line = reader.readLine()) != null && !line.isEmpty();) {
+                int separator = line.indexOf(':');
+                if (separator > 0 && "Range".equalsIgnoreCase(
+                        line.substring(0, separator).trim())) {
+                    range = line.substring(separator + 1).trim();
+                }
+            }
+
+            Matcher matcher = REQUEST_LINE.matcher(requestLine);
+            if (!matcher.matches()) {
+                sendStatus(outputStream, 400, "Bad Request");
+                return;
+            }
+            boolean headOnly = "HEAD".equals(matcher.group(1));
+            File file = mProvider.getPackage(matcher.group(2));
+            if (file == null || !file.isFile()) {
+                sendStatus(outputStream, 404, "Not Found");
+                return;
+            }
+            servePackage(outputStream, file, range, headOnly);
+        } catch (IOException e) {
+            Log.e(TAG, "Error while serving peer", e);
+        }
+    }
+
+    private static void servePackage(OutputStream outputStream, File file, String range,
+            boolean headOnly) throws IOException {
+        final long size = file.length();
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches() ||
+                    (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                sendRangeNotSatisfiable(outputStream, size);
+                return;
+            }
+            try {
+                if (matcher.group(1).isEmpty()) {
+                    // Suffix range, the last n bytes
+                    start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                sendRangeNotSatisfiable(outputStream, size);
+                return;
+            }
+            if (start >= size || start > end) {
+                sendRangeNotSatisfiable(outputStream, size);
+                return;
+            }
+            partial = true;
+        }
+
+        final long length = end - start + 1;
+        StringBuilder headers = new StringBuilder();
+        headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Type: application/zip\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(size).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        outputStream.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (headOnly) {
+            outputStream.flush();
+            return;
+        }
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            inputStream.getChannel().position(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                outputStream.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        outputStream.flush();
+    }
+
+    private static void sendRangeNotSatisfiable(OutputStream outputStream, long size)
+            throws IOException {
+        String response = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                "Content-Range: bytes */" + size + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n\r\n";
+        outputStream.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+    }
+
+    private static void sendStatus(OutputStream outputStream, int code, String reason)
+            throws IOException {
+        String response = "HTTP/1.1 " + code + " " + reason + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n\r\n";
+        outputStream.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import android.os.SystemClock;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Reports the progress of a download to a {@link DownloadClient.ProgressListener}
+ * at most once per interval, along with the speed and the remaining time as
+ * estimated by a {@link ThroughputEstimator}.
+ * Meant to be fed after every chunk written by the download thread, which also
+ * syncs the file through it every now and then.
+ */
+class ProgressSampler {
+
+    static final long DEFAULT_INTERVAL_MS = 250;
+    private static final long SYNC_INTERVAL_MS = 5000;
+
+    private final DownloadClient.ProgressListener mListener;
+    private final long mIntervalMs;
+    private final ThroughputEstimator mEstimator;
+
+    private long mTotalBytes;
+    private long mBytesRead;
+    private long mLastReportMillis;
+    private long mLastSyncMillis;
+
+    // Bytes copied from a local file rather than transferred, and the time spent on
+    // it, both left out of the speed. The bytes still to copy are left out of the
+    // remaining time.
+    private long mCopiedBytes;
+    private long mCopyMillis;
+    private long mPendingCopiedBytes;
+
+    ProgressSampler(DownloadClient.ProgressListener listener, long intervalMs,
+            ThroughputEstimator estimator) {
+        mListener = listener;
+        mIntervalMs = intervalMs;
+        mEstimator = estimator != null ? estimator : new ThroughputEstimator();
+    }
+
+    /**
+     * Start sampling. The time since the estimator was last used, if it was,
+     * isn't accounted for in the speed.
+     *
+     * @param bytesRead the bytes already available, when resuming
+     * @param totalBytes the size of the file, or a value <= 0 if unknown
+     */
+    void start(long bytesRead, long totalBytes) {
+        start(bytesRead, totalBytes, 0);
+    }
+
+    /**
+     * Start sampling a download where some of the remaining bytes are copied from a
+     * local file, see {@link #updateCopied}.
+     *
+     * @param copiedBytes the bytes still to read that will be copied
+     */
+    void start(long bytesRead, long totalBytes, long copiedBytes) {
+        final long millis = SystemClock.elapsedRealtime();
+        mBytesRead = bytesRead;
+        mTotalBytes = totalBytes;
+        mCopiedBytes = 0;
+        mCopyMillis = 0;
+        mPendingCopiedBytes = copiedBytes;
+        mEstimator.restart(millis, bytesRead);
+        // Report the initial value right away
+        mLastReportMillis = millis - mIntervalMs;
+        mLastSyncMillis = millis;
+    }
+
+    void update(long bytesRead) {
+        mBytesRead = bytesRead;
+        final long millis = SystemClock.elapsedRealtime();
+        if (millis - mLastReportMillis >= mIntervalMs) {
+            report(millis);
+        }
+    }
+
+    /**
+     * Like {@link #update}, for bytes that were copied from a local file. They count
+     * in the progress, but neither they nor the time spent copying them count in the
+     * speed, which remains the one of the transfer.
+     *
+     * @param copiedBytes the bytes copied since the last update
+     * @param startMillis when the copy started, as per {@link SystemClock#elapsedRealtime}
+     */
+    void updateCopied(long bytesRead, long copiedBytes, long startMillis) {
+        mCopiedBytes += copiedBytes;
+        mPendingCopiedBytes = Math.max(0, mPendingCopiedBytes - copiedBytes);
+        mCopyMillis += Math.max(0, SystemClock.elapsedRealtime() - startMillis);
+        update(bytesRead);
+    }
+
+    /**
+     * Report the last value, regardless of when the previous one was.
+     */
+    void flush() {
+        report(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * {@link #sync} if the last sync is old enough.
+     */
+    void syncIfDue(FileDescriptor fd) throws IOException {
+        if (SystemClock.elapsedRealtime() - mLastSyncMillis >= SYNC_INTERVAL_MS) {
+            sync(fd);
+        }
+    }
+
+    /**
+     * Make sure the bytes read so far reached the storage, then report them as safe
+     * to resume from.
+     */
+    void sync(FileDescriptor fd) throws IOException {
+        fd.sync();
+        mLastSyncMillis = SystemClock.elapsedRealtime();
+        if (mListener != null) {
+            mListener.onSynced(mBytesRead);
+        }
+    }
+
+    private void report(long millis) {
+        mEstimator.addSample(millis - mCopyMillis, mBytesRead - mCopiedBytes);
+        mLastReportMillis = millis;
+        if (mListener != null) {
+            long eta = mTotalBytes > 0 ?
+                    mEstimator.getEta(mTotalBytes - mBytesRead - mPendingCopiedBytes) : -1;
+            mListener.update(mBytesRead, mTotalBytes, mEstimator.getSpeed(), eta);
+        }
+    }
+}
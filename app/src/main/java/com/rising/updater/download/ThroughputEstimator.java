@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the throughput of a download from samples of the bytes transferred.
+ * The speed is a moving average whose weights decay with time, so that it doesn't
+ * depend on how often samples are taken. Statistics over the last seconds are kept
+ * as well. The estimator can be reused after a pause or a change of server, the
+ * previous speed is then used until enough new samples are taken.
+ * All times are in milliseconds and only need to be monotonic.
+ */
+public class ThroughputEstimator {
+
+    // Weight of a sample halves after about 3.5 seconds
+    private static final double TIME_CONSTANT_MS = 5000;
+    // Samples shorter than this are merged with the next ones
+    private static final long MIN_SAMPLE_MS = 200;
+    private static final long WINDOW_MS = 30000;
+    private static final int MAX_SAMPLES = 128;
+
+    // Ring buffer of the samples in the window
+    private final long[] mSampleEnds = new long[MAX_SAMPLES];
+    private final long[] mSampleBytes = new long[MAX_SAMPLES];
+    private final long[] mSampleDurations = new long[MAX_SAMPLES];
+    private final long[] mSortBuffer = new long[MAX_SAMPLES];
+    private int mFirstSample;
+    private int mSampleCount;
+
+    private long mLastTime = -1;
+    private long mLastBytes;
+    private double mSpeed = -1;
+    private long mInstantSpeed = -1;
+
+    /**
+     * Start a new series of samples. The speed measured so far is kept, but the time
+     * between the last sample and this one isn't accounted for.
+     */
+    public synchronized void restart(long time, long bytes) {
+        mLastTime = time;
+        mLastBytes = bytes;
+        mInstantSpeed = -1;
+    }
+
+    /**
+     * Use the given speed until samples are taken, for example the speed measured
+     * before the app was restarted. Has no effect if the speed is already known.
+     */
+    public synchronized void setInitialSpeed(long speed) {
+        if (mSpeed < 0 && speed > 0) {
+            mSpeed = speed;
+        }
+    }
+
+    /**
+     * @param time the time of the sample
+     * @param bytes the total number of bytes transferred at that time
+     */
+    public synchronized void addSample(long time, long bytes) {
+        if (mLastTime < 0 || bytes < mLastBytes || time < mLastTime) {
+            restart(time, bytes);
+            return;
+        }
+        final long duration = time - mLastTime;
+        if (duration < MIN_SAMPLE_MS) {
+            return;
+        }
+        final long transferred = bytes - mLastBytes;
+        final double speed = transferred * 1000.0 / duration;
+        if (mSpeed < 0) {
+            mSpeed = speed;
+        } else {
+            double alpha = 1 - Math.exp(-duration / TIME_CONSTANT_MS);
+            mSpeed += alpha * (speed - mSpeed);
+        }
+        mInstantSpeed = Math.round(speed);
+        mLastTime = time;
+        mLastBytes = bytes;
+
+        if (mSampleCount == MAX_SAMPLES) {
+            dropFirstSample();
+        }
+        int index = (mFirstSample + mSampleCount) % MAX_SAMPLES;
+        mSampleEnds[index] = time;
+        mSampleBytes[index] = transferred;
+        mSampleDurations[index] = duration;
+        mSampleCount++;
+        while (mSampleCount > 0 && mSampleEnds[mFirstSample] <= time - WINDOW_MS) {
+            dropFirstSample();
+        }
+    }
+
+    private void dropFirstSample() {
+        mFirstSample = (mFirstSample + 1) % MAX_SAMPLES;
+        mSampleCount--;
+    }
+
+    /**
+     * @return the smoothed speed in bytes per second, or -1 if unknown
+     */
+    public synchronized long getSpeed() {
+        return mSpeed < 0 ? -1 : Math.round(mSpeed);
+    }
+
+    /**
+     * @return the speed of the last sample in bytes per second, or -1 if unknown
+     */
+    public synchronized long getInstantSpeed() {
+        return mInstantSpeed;
+    }
+
+    /**
+     * @return the average speed of the last seconds of transfer in bytes per second,
+     *         or -1 if unknown
+     */
+    public synchronized long getAverageSpeed() {
+        long bytes = 0;
+        long duration = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            int index = (mFirstSample + i) % MAX_SAMPLES;
+            bytes += mSampleBytes[index];
+            duration += mSampleDurations[index];
+        }
+        return duration > 0 ? bytes * 1000 / duration : -1;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the given percentile of the speeds of the samples of the last seconds
+     *         in bytes per second, or -1 if unknown
+     */
+    public synchronized long getSpeedPercentile(int percentile) {
+        if (mSampleCount == 0) {
+            return -1;
+        }
+        for (int i = 0; i < mSampleCount; i++) {
+            int index = (mFirstSample + i) % MAX_SAMPLES;
+            mSortBuffer[i] = mSampleBytes[index] * 1000 / mSampleDurations[index];
+        }
+        Arrays.sort(mSortBuffer, 0, mSampleCount);
+        int rank = (int) Math.ceil(percentile / 100.0 * mSampleCount) - 1;
+        return mSortBuffer[Math.max(0, Math.min(mSampleCount - 1, rank))];
+    }
+
+    /**
+     * @return the seconds needed to transfer the given bytes, or -1 if unknown
+     */
+    public synchronized long getEta(long remainingBytes) {
+        long speed = getSpeed();
+        return speed > 0 ? Math.max(0, remainingBytes) / speed : -1;
+    }
+}
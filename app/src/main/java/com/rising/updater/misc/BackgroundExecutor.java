@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.misc;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared thread pools for background work, so that bursts of work don't create
+ * a thread each. Blocking work (database, file system) goes to the I/O pool,
+ * work that keeps a core busy (hashing, verification) to the CPU pool.
+ * Tasks submitted with the same key run one at a time, in submission order,
+ * even across pools.
+ */
+public class BackgroundExecutor {
+
+    private static final String TAG = "BackgroundExecutor";
+
+    private static final int IO_POOL_SIZE = 4;
+    private static final int CPU_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Log tasks that had to wait this long to get a thread
+    private static final long SLOW_START_MS = 1000;
+
+    public enum Pool {
+        IO,
+        CPU,
+    }
+
+    /**
+     * Handle of a submitted task.
+     */
+    public interface Task {
+        /**
+         * Cancel the task, interrupting it if it's already running.
+         */
+        void cancel();
+
+        boolean isCancelled();
+
+        boolean isDone();
+    }
+
+    public static class Metrics {
+        private final AtomicLong mSubmitted = new AtomicLong();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mTotalWaitMs = new AtomicLong();
+        private final AtomicLong mMaxWaitMs = new AtomicLong();
+        private final AtomicLong mTotalRunMs = new AtomicLong();
+        private final AtomicInteger mQueued = new AtomicInteger();
+
+        public long getSubmitted() {
+            return mSubmitted.get();
+        }
+
+        public long getCompleted() {
+            return mCompleted.get();
+        }
+
+        /**
+         * @return the number of tasks waiting for a thread or for a task with the same key
+         */
+        public int getQueueDepth() {
+            return mQueued.get();
+        }
+
+        public long getAverageWaitMs() {
+            long completed = mCompleted.get();
+            return completed > 0 ? mTotalWaitMs.get() / completed : 0;
+        }
+
+        public long getMaxWaitMs() {
+            return mMaxWaitMs.get();
+        }
+
+        public long getAverageRunMs() {
+            long completed = mCompleted.get();
+            return completed > 0 ? mTotalRunMs.get() / completed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + getSubmitted() + " completed=" + getCompleted() +
+                    " queued=" + getQueueDepth() + " avgWait=" + getAverageWaitMs() + "ms" +
+                    " maxWait=" + getMaxWaitMs() + "ms avgRun=" + getAverageRunMs() + "ms";
+        }
+    }
+
+    private static BackgroundExecutor sInstance = null;
+
+    private final Map<Pool, ThreadPoolExecutor> mExecutors = new HashMap<>();
+    private final Map<Pool, Metrics> mMetrics = new HashMap<>();
+    // Tasks waiting for the running task with the same key, the running one included
+    private final Map<String, Queue<TrackedTask>> mKeyedTasks = new HashMap<>();
+
+    public static synchronized BackgroundExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new BackgroundExecutor();
+        }
+        return sInstance;
+    }
+
+    private BackgroundExecutor() {
+        mExecutors.put(Pool.IO, createExecutor("updater-io", IO_POOL_SIZE,
+                Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutors.put(Pool.CPU, createExecutor("updater-cpu", CPU_POOL_SIZE,
+                Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE));
+        mMetrics.put(Pool.IO, new Metrics());
+        mMetrics.put(Pool.CPU, new Metrics());
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int size, int priority) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(priority);
+            runnable.run();
+        }, name + "-" + count.incrementAndGet());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public Task execute(Pool pool, Runnable runnable) {
+        return execute(pool, null, runnable);
+    }
+
+    /**
+     * Run the given task in the background.
+     *
+     * @param pool the pool the task runs in
+     * @param key tasks with the same key run in submission order, one at a time.
+     *            Can be null if the task doesn't need to be ordered
+     * @param runnable the task
+     * @return a handle to cancel the task
+     */
+    public Task execute(Pool pool, String key, Runnable runnable) {
+        TrackedTask task = new TrackedTask(pool, key, runnable);
+        Metrics metrics = mMetrics.get(pool);
+        metrics.mSubmitted.incrementAndGet();
+        metrics.mQueued.incrementAndGet();
+        if (key == null) {
+            mExecutors.get(pool).execute(task);
+            return task;
+        }
+        boolean runNow;
+        synchronized (mKeyedTasks) {
+            Queue<TrackedTask> queue = mKeyedTasks.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mKeyedTasks.put(key, queue);
+            }
+            queue.add(task);
+            runNow = queue.size() == 1;
+        }
+        if (runNow) {
+            mExecutors.get(pool).execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * @return the number of tasks of the given pool that can run at the same time
+     */
+    public int getPoolSize(Pool pool) {
+        return mExecutors.get(pool).getMaximumPoolSize();
+    }
+
+    public Metrics getMetrics(Pool pool) {
+        return mMetrics.get(pool);
+    }
+
+    private void onTaskFinished(TrackedTask task) {
+        if (task.mKey == null) {
+            return;
+        }
+        TrackedTask next;
+        synchronized (mKeyedTasks) {
+            Queue<TrackedTask> queue = mKeyedTasks.get(task.mKey);
+            queue.remove(task);
+            next = queue.peek();
+            if (next == null) {
+                mKeyedTasks.remove(task.mKey);
+            }
+        }
+        if (next != null) {
+            mExecutors.get(next.mPool).execute(next);
+        }
+    }
+
+    private class TrackedTask extends FutureTask<Void> implements Task {
+        private final Pool mPool;
+        private final String mKey;
+        private final long mSubmitTime = SystemClock.elapsedRealtime();
+
+        private TrackedTask(Pool pool, String key, Runnable runnable) {
+            super(runnable, null);
+            mPool = pool;
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final Metrics metrics = mMetrics.get(mPool);
+            final long startTime = SystemClock.elapsedRealtime();
+            final long waitMs = startTime - mSubmitTime;
+            metrics.mQueued.decrementAndGet();
+            if (waitMs > SLOW_START_MS) {
+                Log.d(TAG, "Task waited " + waitMs + "ms in " + mPool + ": " + metrics);
+            }
+            try {
+                super.run();
+            } finally {
+                metrics.mCompleted.incrementAndGet();
+                metrics.mTotalWaitMs.addAndGet(waitMs);
+                metrics.mMaxWaitMs.accumulateAndGet(waitMs, Math::max);
+                metrics.mTotalRunMs.addAndGet(SystemClock.elapsedRealtime() - startTime);
+                // Clear the interrupt of a cancelled task before the thread is reused
+                Thread.interrupted();
+                onTaskFinished(this);
+            }
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (CancellationException e) {
+                // Expected
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Background task failed", e.getCause());
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancel(true);
+        }
+    }
+}
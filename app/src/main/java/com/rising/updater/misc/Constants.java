@@ -35,6 +35,7 @@ public final class Constants {
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_PEER_SHARING = "peer_sharing";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -45,6 +46,7 @@ public final class Constants {
     public static final String PROP_PACKAGE_TYPE = "ro.rising.packagetype";
     public static final String PROP_NEXT_DEVICE = "ro.updater.next_device";
     public static final String PROP_UPDATER_ALLOW_DOWNGRADING = "rising.updater.allow_downgrading";
+    public static final String PROP_UPDATER_PEER_ADDRESS = "rising.updater.peer_address";
 
     public static final String PREF_INSTALL_OLD_TIMESTAMP = "install_old_timestamp";
     public static final String PREF_INSTALL_NEW_TIMESTAMP = "install_new_timestamp";
@@ -28,18 +28,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    public static final String SHA256_FILE_EXT = ".sha256";
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
 
+    public interface CheckpointCallBack {
+        void onCheckpoint(long bytesCommitted);
+    }
+
     private static class CallbackByteChannel implements ReadableByteChannel {
         private final ProgressCallBack mCallback;
         private final long mSize;
@@ -103,7 +114,7 @@ public class FileUtils {
     public static void copyFile(ContentResolver cr, File sourceFile, Uri destUri,
                                 ProgressCallBack progressCallBack) throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
-             ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, "w");
+             ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, "wt");
              FileChannel destChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
             if (progressCallBack != null) {
                 ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
@@ -118,6 +129,145 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Copy a file to the given uri in chunks, starting from the given offset. After each
+     * chunk the destination is synced and the number of bytes durably written is passed
+     * to the checkpoint callback, so that an interrupted copy can later be resumed from
+     * there. The part of the destination kept because of the offset is read back and
+     * compared with the source, the copy starts over if they differ. The digest is then
+     * the one of the whole destination.
+     *
+     * @param offset number of bytes already present in the destination
+     * @param chunkSize number of bytes to write between two checkpoints
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    public static void copyFileChunked(ContentResolver cr, File sourceFile, Uri destUri,
+                                       long offset, long chunkSize, MessageDigest digest,
+                                       CheckpointCallBack checkpointCallBack,
+                                       ProgressCallBack progressCallBack) throws IOException {
+        try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
+             ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, offset > 0 ? "rw" : "wt");
+             FileChannel destChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
+            final long size = sourceChannel.size();
+            if (offset < 0 || offset > size || offset > destChannel.size()) {
+                Log.w(TAG, "Invalid resume offset " + offset + ", starting over");
+                offset = 0;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+            // The digest state can't be persisted, rebuild it from what the destination
+            // has, as long as it matches the source
+            long position = 0;
+            if (offset > 0) {
+                // Not closed, that would close the descriptor of the destination
+                FileChannel destReadChannel =
+                        new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                ByteBuffer destBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                while (position < offset) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Copy interrupted");
+                    }
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), offset - position));
+                    destBuffer.clear();
+                    destBuffer.limit(buffer.limit());
+                    if (!readFully(sourceChannel, buffer, position) ||
+                            !readFully(destReadChannel, destBuffer, position)) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    buffer.flip();
+                    destBuffer.flip();
+                    if (!buffer.equals(destBuffer)) {
+                        Log.w(TAG, "The destination differs from the source after " +
+                                position + " bytes, starting over");
+                        digest.reset();
+                        offset = 0;
+                        position = 0;
+                        break;
+                    }
+                    digest.update(destBuffer);
+                    position += buffer.limit();
+                }
+            }
+
+            destChannel.position(offset);
+            long nextCheckpoint = offset + chunkSize;
+            int lastProgress = -1;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Copy interrupted");
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), nextCheckpoint - position));
+                int read = sourceChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    destChannel.write(buffer);
+                }
+                position += read;
+
+                if (position == nextCheckpoint || position == size) {
+                    destChannel.force(false);
+                    if (checkpointCallBack != null) {
+                        checkpointCallBack.onCheckpoint(position);
+                    }
+                    nextCheckpoint = position + chunkSize;
+                }
+                if (progressCallBack != null) {
+                    int progress = Math.round(position * 100.f / size);
+                    if (progress != lastProgress) {
+                        progressCallBack.update(progress);
+                        lastProgress = progress;
+                    }
+                }
+            }
+            // Drop anything left over from a previous, longer, destination
+            destChannel.truncate(size);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not copy file", e);
+            throw e;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a checksum file in the format used by sha256sum to the given uri.
+     *
+     * @param fileName the name of the file the checksum is for
+     */
+    public static void writeSha256File(ContentResolver cr, Uri checksumUri, String fileName,
+                                       byte[] digest) throws IOException {
+        String line = toHexString(digest) + "  " + fileName + "\n";
+        try (ParcelFileDescriptor pfd = cr.openFileDescriptor(checksumUri, "wt");
+             FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor())) {
+            outputStream.write(line.getBytes(StandardCharsets.UTF_8));
+            outputStream.getFD().sync();
+        }
+    }
+
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
     public static String queryName(@NonNull ContentResolver resolver, Uri uri) {
         try (Cursor returnCursor = resolver.query(uri, null, null, null, null)) {
             returnCursor.moveToFirst();
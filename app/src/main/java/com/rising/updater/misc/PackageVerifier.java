@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.misc;
+
+import android.os.RecoverySystem;
+import android.util.Log;
+
+import com.rising.updater.download.BlockMap;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Verifies packages against their signed {@link BlockMap}, hashing the blocks in
+ * parallel. Packages without a block map, or whose block map can't be authenticated,
+ * are verified with {@link RecoverySystem#verifyPackage}.
+ * The work is shared with the pools of {@link BackgroundExecutor}. The calling
+ * thread does its part as well, so verifying from one of those pools can't wait
+ * for tasks stuck behind it.
+ */
+public class PackageVerifier {
+
+    private static final String TAG = "PackageVerifier";
+
+    // Same certificates used by RecoverySystem to verify packages
+    private static final File OTA_CERTIFICATES = new File("/system/etc/security/otacerts.zip");
+
+    private static final int DIGEST_BUFFER_SIZE = 1024 * 1024;
+
+    public interface ProgressListener {
+        void onProgress(long bytesVerified, long totalBytes);
+    }
+
+    /**
+     * Verify the given package, throwing an exception if it isn't valid.
+     *
+     * @param file the package
+     * @param downloadUrl the URL the package was downloaded from, to get its block map,
+     *                    or null to only use the platform verifier
+     * @param listener notified as the package is verified, can be null
+     * @param executor runs the hashing along with the calling thread
+     * @return the SHA-256 digest of the package
+     */
+    public static byte[] verify(File file, String downloadUrl, ProgressListener listener,
+            BackgroundExecutor executor) throws IOException, GeneralSecurityException {
+        BlockMap blockMap = downloadUrl != null ? getSignedBlockMap(downloadUrl) : null;
+        // Hash the whole file while it's being read anyway, so it's mostly in the page cache
+        FutureTask<byte[]> digest = new FutureTask<>(() -> computeDigest(file));
+        BackgroundExecutor.Task digestTask =
+                executor.execute(BackgroundExecutor.Pool.IO, digest);
+        try {
+            if (blockMap == null) {
+                final long size = file.length();
+                RecoverySystem.verifyPackage(file, listener == null ? null :
+                        progress -> listener.onProgress(size * progress / 100, size), null);
+            } else {
+                verifyBlocks(file, blockMap, listener, executor);
+            }
+            // Compute it here if it didn't start yet, otherwise wait for it
+            digest.run();
+            return digest.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            digest.cancel(true);
+            digestTask.cancel();
+        }
+    }
+
+    private static byte[] computeDigest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static BlockMap getSignedBlockMap(String downloadUrl) {
+        byte[] content;
+        byte[] signature;
+        try {
+            content = BlockMap.download(downloadUrl + BlockMap.EXT);
+            signature = BlockMap.download(downloadUrl + BlockMap.EXT + BlockMap.SIGNATURE_EXT);
+        } catch (IOException e) {
+            Log.d(TAG, "No signed block map for " + downloadUrl, e);
+            return null;
+        }
+        try {
+            if (!isSignatureValid(content, signature)) {
+                Log.e(TAG, "The block map of " + downloadUrl + " isn't signed by a trusted key");
+                return null;
+            }
+            return BlockMap.parse(content);
+        } catch (IOException | GeneralSecurityException | JSONException e) {
+            Log.e(TAG, "Could not read the block map of " + downloadUrl, e);
+            return null;
+        }
+    }
+
+    private static boolean isSignatureValid(byte[] content, byte[] signature)
+            throws IOException, GeneralSecurityException {
+        for (PublicKey key : getTrustedKeys()) {
+            String algorithm = "EC".equals(key.getAlgorithm()) ?
+                    "SHA256withECDSA" : "SHA256withRSA";
+            Signature verifier = Signature.getInstance(algorithm);
+            verifier.initVerify(key);
+            verifier.update(content);
+            try {
+                if (verifier.verify(signature)) {
+                    return true;
+                }
+            } catch (SignatureException e) {
+                // Malformed for this key, try the next one
+            }
+        }
+        return false;
+    }
+
+    private static List<PublicKey> getTrustedKeys() throws IOException, GeneralSecurityException {
+        List<PublicKey> keys = new ArrayList<>();
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        try (ZipFile zipFile = new ZipFile(OTA_CERTIFICATES)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                try (InputStream inputStream = zipFile.getInputStream(entries.nextElement())) {
+                    X509Certificate certificate =
+                            (X509Certificate) factory.generateCertificate(inputStream);
+                    keys.add(certificate.getPublicKey());
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static void verifyBlocks(File file, BlockMap blockMap, ProgressListener listener,
+            BackgroundExecutor executor) throws IOException, SignatureException {
+        if (file.length() != blockMap.getSize()) {
+            throw new SignatureException("Size mismatch, expected " + blockMap.getSize() +
+                    " bytes, found " + file.length());
+        }
+
+        final int blockCount = blockMap.getBlockCount();
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        // Blocks hashed by the pool, the calling thread counts its own directly
+        final BlockingQueue<Integer> hashedBlocks = new LinkedBlockingQueue<>();
+        ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        List<BackgroundExecutor.Task> tasks = new ArrayList<>();
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            Runnable worker = () -> {
+                for (int block; !failed.get() && (block = nextBlock.getAndIncrement()) <
+                        blockCount;) {
+                    try {
+                        if (!isBlockValid(channel, blockMap, block, digests.get())) {
+                            failed.set(true);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        error.compareAndSet(null, e instanceof IOException ?
+                                (IOException) e : new IOException(e));
+                        failed.set(true);
+                    }
+                    hashedBlocks.add(block);
+                }
+            };
+            final int workers = Math.min(blockCount,
+                    executor.getPoolSize(BackgroundExecutor.Pool.CPU)) - 1;
+            for (int i = 0; i < workers; i++) {
+                tasks.add(executor.execute(BackgroundExecutor.Pool.CPU, worker));
+            }
+
+            // Workers that didn't start by the time all the blocks are claimed have
+            // nothing left to do, so only the blocks already claimed are waited for
+            long bytesVerified = 0;
+            for (int i = 0; i < blockCount; i++) {
+                Integer block = hashedBlocks.poll();
+                if (block == null) {
+                    int next = nextBlock.getAndIncrement();
+                    if (next < blockCount) {
+                        if (!isBlockValid(channel, blockMap, next, digests.get())) {
+                            failed.set(true);
+                        }
+                        block = next;
+                    } else {
+                        block = hashedBlocks.take();
+                    }
+                }
+                if (error.get() != null) {
+                    throw error.get();
+                }
+                if (failed.get()) {
+                    throw new SignatureException("Checksum mismatch");
+                }
+                bytesVerified += blockMap.getBlockLength(block);
+                if (listener != null) {
+                    listener.onProgress(bytesVerified, blockMap.getSize());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            failed.set(true);
+            for (BackgroundExecutor.Task task : tasks) {
+                task.cancel();
+            }
+        }
+        Log.d(TAG, "Verified " + blockCount + " blocks of " + file.getName() +
+                " with up to " + (tasks.size() + 1) + " threads");
+    }
+
+    private static boolean isBlockValid(FileChannel channel, BlockMap blockMap, int block,
+            MessageDigest digest) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                blockMap.getBlockOffset(block), blockMap.getBlockLength(block));
+        digest.update(buffer);
+        String hash = FileUtils.toHexString(digest.digest());
+        return hash.equals(blockMap.getBlockHash(block));
+    }
+}
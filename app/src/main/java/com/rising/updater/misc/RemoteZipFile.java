@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.misc;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.rising.updater.download.DownloadClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-only access to a zip file on an HTTP server, using range requests to only
+ * fetch the central directory and the parts of the entries that are needed.
+ */
+public class RemoteZipFile {
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    // A stalled server would otherwise block the install indefinitely
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CD_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final int mReadTimeoutMs;
+    private URL mUrl;
+    private long mLength = -1;
+
+    public RemoteZipFile(String url) throws IOException {
+        this(url, READ_TIMEOUT_MS);
+    }
+
+    @VisibleForTesting
+    RemoteZipFile(String url, int readTimeoutMs) throws IOException {
+        mUrl = DownloadClient.requireHttps(url);
+        mReadTimeoutMs = readTimeoutMs;
+        readCentralDirectory();
+    }
+
+    /**
+     * @return the URL the file was read from, after following redirects
+     */
+    public String getUrl() {
+        return mUrl.toString();
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset of the data of the given entry, read from its local header
+     * since the extra field can differ from the one of the central directory.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = readRange(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Read the whole content of the given entry, meant for small entries.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.mCompressedSize > Integer.MAX_VALUE || entry.mSize > Integer.MAX_VALUE) {
+            throw new IOException(entry.mName + " is too big");
+        }
+        ByteBuffer data = readRange(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        if (entry.mMethod == ZipEntry.STORED) {
+            return compressed;
+        } else if (entry.mMethod != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] content = new byte[(int) entry.mSize];
+            int inflated = 0;
+            while (inflated < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, inflated, content.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != content.length) {
+                throw new IOException("Truncated entry " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid data for " + entry.mName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of up to 64 KiB,
+        // and may be preceded by the zip64 one and its locator
+        ByteBuffer tail = readTail(ZIP64_EOCD_SIZE + ZIP64_EOCD_LOCATOR_SIZE + EOCD_SIZE +
+                MAX_COMMENT_SIZE);
+        long tailOffset = mLength - tail.remaining();
+        int eocd = -1;
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file");
+        }
+
+        long entries = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (entries == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                throw new IOException("Missing zip64 end of central directory locator");
+            }
+            long zip64EocdOffset = tail.getLong(locator + 8);
+            ByteBuffer zip64Eocd;
+            if (zip64EocdOffset >= tailOffset) {
+                zip64Eocd = tail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                zip64Eocd.position((int) (zip64EocdOffset - tailOffset));
+                zip64Eocd = zip64Eocd.slice().order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                zip64Eocd = readRange(zip64EocdOffset, ZIP64_EOCD_SIZE);
+            }
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory");
+            }
+            cdSize = zip64Eocd.getLong(40);
+            cdOffset = zip64Eocd.getLong(48);
+        }
+        if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > mLength) {
+            throw new IOException("Invalid central directory");
+        }
+
+        ByteBuffer cd;
+        if (cdOffset >= tailOffset) {
+            cd = tail.duplicate();
+            cd.position((int) (cdOffset - tailOffset));
+            cd.limit(cd.position() + (int) cdSize);
+            cd = cd.slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            cd = readRange(cdOffset, (int) cdSize);
+        }
+        parseCentralDirectory(cd);
+    }
+
+    private void parseCentralDirectory(ByteBuffer cd) throws IOException {
+        int position = 0;
+        while (position + 46 <= cd.limit() && cd.getInt(position) == CD_ENTRY_SIGNATURE) {
+            int method = cd.getShort(position + 10) & 0xffff;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            long size = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & 0xffffffffL;
+            if (position + 46 + nameLength + extraLength > cd.limit()) {
+                throw new IOException("Truncated central directory");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(position + 46);
+            cd.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Values that don't fit in 32 bits are in the zip64 extra field, in this order
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = cd.getShort(extra) & 0xffff;
+                int length = cd.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == 0xffffffffL) {
+                        size = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = cd.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+
+            mEntries.put(name, new Entry(name, method, compressedSize, size,
+                    localHeaderOffset));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private ByteBuffer readTail(int length) throws IOException {
+        return request("bytes=-" + length, length);
+    }
+
+    private ByteBuffer readRange(long start, int length) throws IOException {
+        ByteBuffer buffer = request("bytes=" + start + "-" + (start + length - 1), length);
+        if (buffer.remaining() != length) {
+            throw new IOException("Unexpected end of file");
+        }
+        return buffer;
+    }
+
+    private ByteBuffer request(String range, int maxLength) throws IOException {
+        HttpURLConnection client = (HttpURLConnection) mUrl.openConnection();
+        try {
+            client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            client.setReadTimeout(mReadTimeoutMs);
+            client.setRequestProperty("Range", range);
+            int responseCode = client.getResponseCode();
+            String contentRange = client.getHeaderField("Content-Range");
+            Matcher matcher = contentRange != null ?
+                    CONTENT_RANGE.matcher(contentRange) : null;
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL || matcher == null ||
+                    !matcher.matches()) {
+                throw new IOException("The server can't fulfil partial content requests");
+            }
+            // Keep talking to the same server if we were redirected
+            mUrl = client.getURL();
+            mLength = Long.parseLong(matcher.group(3));
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream inputStream = client.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while (content.size() < maxLength && (count = inputStream.read(buffer, 0,
+                        Math.min(buffer.length, maxLength - content.size()))) > 0) {
+                    content.write(buffer, 0, count);
+                }
+            }
+            return ByteBuffer.wrap(content.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            client.disconnect();
+        }
+    }
+}
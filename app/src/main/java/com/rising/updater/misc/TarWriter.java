@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal writer for uncompressed ustar archives. Entries are streamed, so their
+ * size must be known before they are started.
+ */
+public class TarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+    // Largest size that fits in the 11 octal digits of the header
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBlock = ByteBuffer.allocate(BLOCK_SIZE);
+
+    private long mEntryRemaining = -1;
+    private long mEntrySize;
+
+    public TarWriter(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    public void putEntry(String name, long size, long lastModifiedMillis) throws IOException {
+        if (mEntryRemaining > 0) {
+            throw new IllegalStateException("The previous entry is not complete");
+        }
+        if (mEntryRemaining == 0) {
+            closeEntry();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            throw new IllegalArgumentException("Entry name too long: " + name);
+        }
+
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        if (size <= MAX_OCTAL_SIZE) {
+            writeOctal(header, 124, 12, size);
+        } else {
+            // GNU base-256 extension
+            header[124] = (byte) 0x80;
+            for (int i = 135; i > 124; i--) {
+                header[i] = (byte) size;
+                size >>>= 8;
+            }
+        }
+        writeOctal(header, 136, 12, lastModifiedMillis / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, checksum);
+
+        writeFully(ByteBuffer.wrap(header));
+        mEntrySize = size;
+        mEntryRemaining = size;
+    }
+
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() > mEntryRemaining) {
+            throw new IOException("Writing more than the declared entry size");
+        }
+        mEntryRemaining -= buffer.remaining();
+        writeFully(buffer);
+    }
+
+    public void closeEntry() throws IOException {
+        if (mEntryRemaining != 0) {
+            throw new IOException("Entry is missing " + mEntryRemaining + " bytes");
+        }
+        int padding = (int) ((BLOCK_SIZE - (mEntrySize % BLOCK_SIZE)) % BLOCK_SIZE);
+        if (padding > 0) {
+            writeZeros(padding);
+        }
+        mEntryRemaining = -1;
+    }
+
+    /**
+     * Write the end of archive marker. The underlying channel is not closed.
+     */
+    public void finish() throws IOException {
+        if (mEntryRemaining >= 0) {
+            closeEntry();
+        }
+        writeZeros(BLOCK_SIZE * 2);
+    }
+
+    private void writeZeros(int count) throws IOException {
+        while (count > 0) {
+            mBlock.clear();
+            mBlock.put(new byte[BLOCK_SIZE]);
+            mBlock.flip();
+            mBlock.limit(Math.min(count, BLOCK_SIZE));
+            count -= mBlock.remaining();
+            writeFully(mBlock);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        // Zero padded, followed by a NUL
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        int start = offset + digits - octal.length();
+        for (int i = offset; i < start; i++) {
+            header[i] = '0';
+        }
+        for (int i = 0; i < octal.length(); i++) {
+            header[start + i] = (byte) octal.charAt(i);
+        }
+        header[offset + digits] = 0;
+    }
+}
@@ -36,7 +36,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import com.rising.updater.R;
-import com.rising.updater.UpdatesDbHelper;
 import com.rising.updater.controller.UpdaterService;
 import com.rising.updater.model.Update;
 import com.rising.updater.model.UpdateBaseInfo;
@@ -204,6 +203,13 @@ public class Utils {
         context.startService(intent);
     }
 
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_STREAM_INSTALL_UPDATE);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
         Network activeNetwork = cm.getActiveNetwork();
@@ -294,9 +300,8 @@ public class Utils {
 
     /**
      * Cleanup the download directory, which is assumed to be a privileged location
-     * the user can't access and that might have stale files. This can happen if
-     * the data of the application are wiped.
-     *
+     * the user can't access, removing what previous installations left behind.
+     * Files that don't belong to any download are removed by the controller.
      */
     public static void cleanupDownloadsDir(Context context) {
         File downloadPath = getDownloadPath(context);
@@ -319,36 +324,6 @@ public class Utils {
                 preferences.edit().remove(Constants.PREF_INSTALL_PACKAGE_PATH).apply();
             }
         }
-
-        final String DOWNLOADS_CLEANUP_DONE = "cleanup_done";
-        if (preferences.getBoolean(DOWNLOADS_CLEANUP_DONE, false)) {
-            return;
-        }
-
-        Log.d(TAG, "Cleaning " + downloadPath);
-        if (!downloadPath.isDirectory()) {
-            return;
-        }
-        File[] files = downloadPath.listFiles();
-        if (files == null) {
-            return;
-        }
-
-        // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
-        List<String> knownPaths = new ArrayList<>();
-        for (UpdateInfo update : dbHelper.getUpdates()) {
-            knownPaths.add(update.getFile().getAbsolutePath());
-        }
-        for (File file : files) {
-            if (!knownPaths.contains(file.getAbsolutePath())) {
-                Log.d(TAG, "Deleting " + file.getAbsolutePath());
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
-            }
-        }
-
-        preferences.edit().putBoolean(DOWNLOADS_CLEANUP_DONE, true).apply();
     }
 
     public static File appendSequentialNumber(final File file) {
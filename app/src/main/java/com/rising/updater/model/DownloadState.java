@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.model;
+
+/**
+ * What is needed to resume an incomplete download where it stopped, kept across
+ * restarts of the app.
+ */
+public final class DownloadState {
+
+    private final long mDownloadedBytes;
+    private final String mValidator;
+    private final String mMirrorUrl;
+    private final long mSpeed;
+
+    /**
+     * @param downloadedBytes the bytes written to the file so far
+     * @param validator the ETag or the modification date of the file on the server,
+     *                  null if unknown
+     * @param mirrorUrl the URL the file was downloaded from if it isn't the download
+     *                  URL, null otherwise
+     * @param speed the last download speed in bytes per second, or -1 if unknown
+     */
+    public DownloadState(long downloadedBytes, String validator, String mirrorUrl,
+            long speed) {
+        mDownloadedBytes = downloadedBytes;
+        mValidator = validator;
+        mMirrorUrl = mirrorUrl;
+        mSpeed = speed;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public String getMirrorUrl() {
+        return mMirrorUrl;
+    }
+
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    public DownloadState withProgress(long downloadedBytes, long speed) {
+        return new DownloadState(downloadedBytes, mValidator, mMirrorUrl, speed);
+    }
+}
@@ -16,6 +16,7 @@
 package com.rising.updater.model;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Update extends UpdateBase implements UpdateInfo {
     public static final String LOCAL_ID = "local";
@@ -26,9 +27,17 @@ public class Update extends UpdateBase implements UpdateInfo {
     private int mProgress;
     private long mEta;
     private long mSpeed;
+    private long mInstantSpeed = -1;
+    private long mAverageSpeed = -1;
+    private long mSpeedP10 = -1;
+    private long mSpeedP90 = -1;
     private int mInstallProgress;
+    private int mVerificationProgress;
+    private long mVerificationEta;
+    private long mVerificationSpeed;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
+    private final AtomicLong mRevision = new AtomicLong();
 
     public Update() {
     }
@@ -41,7 +50,14 @@ public class Update extends UpdateBase implements UpdateInfo {
         mProgress = update.getProgress();
         mEta = update.getEta();
         mSpeed = update.getSpeed();
+        mInstantSpeed = update.getInstantSpeed();
+        mAverageSpeed = update.getAverageSpeed();
+        mSpeedP10 = update.getSpeedP10();
+        mSpeedP90 = update.getSpeedP90();
         mInstallProgress = update.getInstallProgress();
+        mVerificationProgress = update.getVerificationProgress();
+        mVerificationEta = update.getVerificationEta();
+        mVerificationSpeed = update.getVerificationSpeed();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
     }
@@ -53,6 +69,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setStatus(UpdateStatus status) {
         mStatus = status;
+        onChanged();
     }
 
     @Override
@@ -62,6 +79,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setPersistentStatus(int status) {
         mPersistentStatus = status;
+        onChanged();
     }
 
     @Override
@@ -71,6 +89,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setFile(File file) {
         mFile = file;
+        onChanged();
     }
 
     @Override
@@ -80,6 +99,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setProgress(int progress) {
         mProgress = progress;
+        onChanged();
     }
 
     @Override
@@ -89,6 +109,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setEta(long eta) {
         mEta = eta;
+        onChanged();
     }
 
     @Override
@@ -98,6 +119,47 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setSpeed(long speed) {
         mSpeed = speed;
+        onChanged();
+    }
+
+    @Override
+    public long getInstantSpeed() {
+        return mInstantSpeed;
+    }
+
+    public void setInstantSpeed(long speed) {
+        mInstantSpeed = speed;
+        onChanged();
+    }
+
+    @Override
+    public long getAverageSpeed() {
+        return mAverageSpeed;
+    }
+
+    public void setAverageSpeed(long speed) {
+        mAverageSpeed = speed;
+        onChanged();
+    }
+
+    @Override
+    public long getSpeedP10() {
+        return mSpeedP10;
+    }
+
+    public void setSpeedP10(long speed) {
+        mSpeedP10 = speed;
+        onChanged();
+    }
+
+    @Override
+    public long getSpeedP90() {
+        return mSpeedP90;
+    }
+
+    public void setSpeedP90(long speed) {
+        mSpeedP90 = speed;
+        onChanged();
     }
 
     @Override
@@ -107,6 +169,37 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setInstallProgress(int progress) {
         mInstallProgress = progress;
+        onChanged();
+    }
+
+    @Override
+    public int getVerificationProgress() {
+        return mVerificationProgress;
+    }
+
+    public void setVerificationProgress(int progress) {
+        mVerificationProgress = progress;
+        onChanged();
+    }
+
+    @Override
+    public long getVerificationEta() {
+        return mVerificationEta;
+    }
+
+    public void setVerificationEta(long eta) {
+        mVerificationEta = eta;
+        onChanged();
+    }
+
+    @Override
+    public long getVerificationSpeed() {
+        return mVerificationSpeed;
+    }
+
+    public void setVerificationSpeed(long speed) {
+        mVerificationSpeed = speed;
+        onChanged();
     }
 
     @Override
@@ -116,6 +209,7 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setAvailableOnline(boolean availableOnline) {
         mAvailableOnline = availableOnline;
+        onChanged();
     }
 
     @Override
@@ -125,5 +219,16 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public void setFinalizing(boolean finalizing) {
         mIsFinalizing = finalizing;
+        onChanged();
+    }
+
+    @Override
+    public long getRevision() {
+        return mRevision.get();
+    }
+
+    @Override
+    protected void onChanged() {
+        mRevision.incrementAndGet();
     }
 }
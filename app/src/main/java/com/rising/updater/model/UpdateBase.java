@@ -45,6 +45,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setName(String name) {
         mName = name;
+        onChanged();
     }
 
     @Override
@@ -54,6 +55,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setDownloadId(String downloadId) {
         mDownloadId = downloadId;
+        onChanged();
     }
 
     @Override
@@ -63,6 +65,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setTimestamp(long timestamp) {
         mTimestamp = timestamp;
+        onChanged();
     }
 
     @Override
@@ -72,6 +75,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setType(String type) {
         mType = type;
+        onChanged();
     }
 
     @Override
@@ -81,6 +85,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setVersion(String version) {
         mVersion = version;
+        onChanged();
     }
 
     @Override
@@ -90,6 +95,7 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setDownloadUrl(String downloadUrl) {
         mDownloadUrl = downloadUrl;
+        onChanged();
     }
 
     @Override
@@ -99,5 +105,12 @@ public class UpdateBase implements UpdateBaseInfo {
 
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
+        onChanged();
+    }
+
+    /**
+     * Called after a property changed.
+     */
+    protected void onChanged() {
     }
 }
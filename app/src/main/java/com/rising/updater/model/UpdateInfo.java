@@ -32,9 +32,42 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     long getSpeed();
 
+    /**
+     * @return the speed of the last part of the download, in bytes per second
+     */
+    long getInstantSpeed();
+
+    /**
+     * @return the average speed of the last seconds of the download, in bytes per second
+     */
+    long getAverageSpeed();
+
+    /**
+     * @return the speed the download was faster than 90% of the last seconds, in bytes
+     *         per second
+     */
+    long getSpeedP10();
+
+    /**
+     * @return the speed the download was faster than 10% of the last seconds, in bytes
+     *         per second
+     */
+    long getSpeedP90();
+
     int getInstallProgress();
 
+    int getVerificationProgress();
+
+    long getVerificationEta();
+
+    long getVerificationSpeed();
+
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    /**
+     * @return a number that increases every time the update changes
+     */
+    long getRevision();
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.model;
+
+import java.io.File;
+
+/**
+ * Immutable copy of an update, safe to share between threads.
+ */
+public final class UpdateSnapshot implements UpdateInfo {
+
+    private final String mName;
+    private final String mDownloadUrl;
+    private final String mDownloadId;
+    private final long mTimestamp;
+    private final String mType;
+    private final String mVersion;
+    private final long mFileSize;
+    private final UpdateStatus mStatus;
+    private final int mPersistentStatus;
+    private final File mFile;
+    private final int mProgress;
+    private final long mEta;
+    private final long mSpeed;
+    private final long mInstantSpeed;
+    private final long mAverageSpeed;
+    private final long mSpeedP10;
+    private final long mSpeedP90;
+    private final int mInstallProgress;
+    private final int mVerificationProgress;
+    private final long mVerificationEta;
+    private final long mVerificationSpeed;
+    private final boolean mAvailableOnline;
+    private final boolean mIsFinalizing;
+    private final long mRevision;
+
+    public UpdateSnapshot(UpdateInfo update) {
+        // Read first, so that changes made while copying make the snapshot outdated
+        mRevision = update.getRevision();
+        mName = update.getName();
+        mDownloadUrl = update.getDownloadUrl();
+        mDownloadId = update.getDownloadId();
+        mTimestamp = update.getTimestamp();
+        mType = update.getType();
+        mVersion = update.getVersion();
+        mFileSize = update.getFileSize();
+        mStatus = update.getStatus();
+        mPersistentStatus = update.getPersistentStatus();
+        mFile = update.getFile();
+        mProgress = update.getProgress();
+        mEta = update.getEta();
+        mSpeed = update.getSpeed();
+        mInstantSpeed = update.getInstantSpeed();
+        mAverageSpeed = update.getAverageSpeed();
+        mSpeedP10 = update.getSpeedP10();
+        mSpeedP90 = update.getSpeedP90();
+        mInstallProgress = update.getInstallProgress();
+        mVerificationProgress = update.getVerificationProgress();
+        mVerificationEta = update.getVerificationEta();
+        mVerificationSpeed = update.getVerificationSpeed();
+        mAvailableOnline = update.getAvailableOnline();
+        mIsFinalizing = update.getFinalizing();
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String getType() {
+        return mType;
+    }
+
+    @Override
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    @Override
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    @Override
+    public UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    @Override
+    public int getPersistentStatus() {
+        return mPersistentStatus;
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public long getEta() {
+        return mEta;
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    @Override
+    public long getInstantSpeed() {
+        return mInstantSpeed;
+    }
+
+    @Override
+    public long getAverageSpeed() {
+        return mAverageSpeed;
+    }
+
+    @Override
+    public long getSpeedP10() {
+        return mSpeedP10;
+    }
+
+    @Override
+    public long getSpeedP90() {
+        return mSpeedP90;
+    }
+
+    @Override
+    public int getInstallProgress() {
+        return mInstallProgress;
+    }
+
+    @Override
+    public int getVerificationProgress() {
+        return mVerificationProgress;
+    }
+
+    @Override
+    public long getVerificationEta() {
+        return mVerificationEta;
+    }
+
+    @Override
+    public long getVerificationSpeed() {
+        return mVerificationSpeed;
+    }
+
+    @Override
+    public boolean getAvailableOnline() {
+        return mAvailableOnline;
+    }
+
+    @Override
+    public boolean getFinalizing() {
+        return mIsFinalizing;
+    }
+
+    @Override
+    public long getRevision() {
+        return mRevision;
+    }
+}
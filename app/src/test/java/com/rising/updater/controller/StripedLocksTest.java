@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.rising.updater.model.Update;
+import com.rising.updater.model.UpdateSnapshot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class StripedLocksTest {
+
+    private static final int STRIPES = 16;
+    private static final int UPDATES = 64;
+    private static final int WRITERS = 6;
+    private static final int READERS = 4;
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void sameKeySameLock() {
+        StripedLocks locks = new StripedLocks(STRIPES);
+        for (int i = 0; i < UPDATES; i++) {
+            String key = "update-" + i;
+            assertSame(locks.get(key), locks.get(new String(key)));
+        }
+        // Negative hash codes must not give a negative index
+        assertSame(locks.get("polygenelubricants"), locks.get("polygenelubricants"));
+    }
+
+    /**
+     * Writers change two fields of random updates together while readers copy them,
+     * like the controller does with the lock of each update. No change must be lost
+     * and no copy must see half a change.
+     */
+    @Test
+    public void concurrentChanges() throws Exception {
+        final StripedLocks locks = new StripedLocks(STRIPES);
+        final Map<String, Update> updates = new ConcurrentHashMap<>();
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < UPDATES; i++) {
+            Update update = new Update();
+            update.setDownloadId("update-" + i);
+            update.setEta(0);
+            updates.put(update.getDownloadId(), update);
+            ids.add(update.getDownloadId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < ITERATIONS; j++) {
+                    String id = ids.get(random.nextInt(ids.size()));
+                    Update update = updates.get(id);
+                    synchronized (locks.get(id)) {
+                        int progress = update.getProgress() + 1;
+                        update.setProgress(progress);
+                        update.setEta(-progress);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < READERS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long[] revisions = new long[ids.size()];
+                for (int j = 0; j < ITERATIONS; j++) {
+                    int index = random.nextInt(ids.size());
+                    String id = ids.get(index);
+                    UpdateSnapshot snapshot;
+                    synchronized (locks.get(id)) {
+                        snapshot = new UpdateSnapshot(updates.get(id));
+                    }
+                    assertEquals(-snapshot.getProgress(), snapshot.getEta());
+                    assertTrue(snapshot.getRevision() >= revisions[index]);
+                    revisions[index] = snapshot.getRevision();
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        long total = 0;
+        for (Update update : updates.values()) {
+            total += update.getProgress();
+        }
+        assertEquals((long) WRITERS * ITERATIONS, total);
+    }
+}
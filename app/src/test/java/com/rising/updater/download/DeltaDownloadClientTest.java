@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.rising.updater.misc.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds a package from an older one and the blocks served by a loopback server,
+ * and checks that only the blocks missing from the older package are downloaded.
+ */
+public class DeltaDownloadClientTest {
+
+    private static final String PACKAGE = "package.zip";
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 40;
+    // The last block is partial
+    private static final int SIZE = (BLOCKS - 1) * BLOCK_SIZE + 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LoopbackHttpsServer mServer;
+    private byte[] mBase;
+    private byte[] mContent;
+    private File mBasePackage;
+    private File mDestination;
+
+    private static class Result implements DownloadClient.DownloadCallback,
+            DownloadClient.ProgressListener {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mSucceeded;
+        private volatile String mContentLength;
+        private volatile long mBytesRead = -1;
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+            mContentLength = headers.get("Content-Length");
+        }
+
+        @Override
+        public void onSuccess() {
+            mSucceeded = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mDone.countDown();
+        }
+
+        @Override
+        public void update(long bytesRead, long contentLength, long speed, long eta) {
+            mBytesRead = bytesRead;
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mDone.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException, GeneralSecurityException {
+        Random random = new Random(SIZE);
+        mBase = new byte[BLOCKS * BLOCK_SIZE];
+        random.nextBytes(mBase);
+        mBasePackage = mFolder.newFile("base.zip");
+        Files.write(mBasePackage.toPath(), mBase);
+
+        // Same blocks as the base, except for a few new ones and one that moved
+        mContent = Arrays.copyOf(mBase, SIZE);
+        for (int block : new int[] {3, 10, 11, BLOCKS - 1}) {
+            byte[] changed = new byte[getBlockLength(block)];
+            random.nextBytes(changed);
+            System.arraycopy(changed, 0, mContent, block * BLOCK_SIZE, changed.length);
+        }
+        System.arraycopy(mBase, 20 * BLOCK_SIZE, mContent, 5 * BLOCK_SIZE, BLOCK_SIZE);
+
+        mDestination = new File(mFolder.getRoot(), "download.zip");
+        mServer = new LoopbackHttpsServer();
+        mServer.serve(PACKAGE, mContent);
+        mServer.serve(PACKAGE + BlockMap.EXT, getBlockMap(mContent));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private static int getBlockLength(int block) {
+        return Math.min(BLOCK_SIZE, SIZE - block * BLOCK_SIZE);
+    }
+
+    private static byte[] getBlockMap(byte[] content) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        StringBuilder blocks = new StringBuilder();
+        for (int block = 0; block < BLOCKS; block++) {
+            digest.update(content, block * BLOCK_SIZE, getBlockLength(block));
+            blocks.append(block > 0 ? "," : "").append('"')
+                    .append(FileUtils.toHexString(digest.digest())).append('"');
+        }
+        return ("{\"block_size\": " + BLOCK_SIZE + ", \"size\": " + SIZE +
+                ", \"blocks\": [" + blocks + "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getRange(int firstBlock, int endBlock) {
+        return "bytes=" + firstBlock * BLOCK_SIZE + "-" +
+                ((endBlock - 1) * BLOCK_SIZE + getBlockLength(endBlock - 1) - 1);
+    }
+
+    private DownloadClient build(Result result, long resumeOffset) throws IOException {
+        return new DownloadClient.Builder()
+                .setUrl(mServer.getUrl(PACKAGE))
+                .setDestination(mDestination)
+                .setDeltaBase(mBasePackage)
+                .setDownloadCallback(result)
+                .setProgressListener(result)
+                .setResumeOffset(resumeOffset)
+                .setExpectedSize(SIZE)
+                .build();
+    }
+
+    @Test
+    public void rebuild() throws IOException, InterruptedException, GeneralSecurityException {
+        Result result = new Result();
+        build(result, -1).start();
+        result.await();
+
+        assertTrue(result.mSucceeded);
+        assertEquals(String.valueOf(SIZE), result.mContentLength);
+        assertEquals(SIZE, result.mBytesRead);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        // Adjacent missing blocks are fetched with one request
+        assertEquals(Arrays.asList(getRange(3, 4), getRange(10, 12),
+                getRange(BLOCKS - 1, BLOCKS)), mServer.getRanges());
+        assertEquals(getBlockMap(mContent).length + 3 * BLOCK_SIZE + getBlockLength(BLOCKS - 1),
+                mServer.getBytesServed());
+    }
+
+    /**
+     * Blocks written before the interruption are kept, the partial one is redone.
+     */
+    @Test
+    public void resume() throws IOException, InterruptedException {
+        Files.write(mDestination.toPath(), Arrays.copyOf(mContent, 11 * BLOCK_SIZE + 10));
+        Result result = new Result();
+        build(result, -1).resume();
+        result.await();
+
+        assertTrue(result.mSucceeded);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertEquals(Arrays.asList(getRange(11, 12), getRange(BLOCKS - 1, BLOCKS)),
+                mServer.getRanges());
+    }
+
+    /**
+     * The file may have been allocated past what was written, only the synced
+     * offset is trusted.
+     */
+    @Test
+    public void resumeFromSyncedOffset() throws IOException, InterruptedException {
+        byte[] allocated = new byte[SIZE];
+        System.arraycopy(mContent, 0, allocated, 0, 4 * BLOCK_SIZE);
+        Files.write(mDestination.toPath(), allocated);
+        Result result = new Result();
+        build(result, 4 * BLOCK_SIZE).resume();
+        result.await();
+
+        assertTrue(result.mSucceeded);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertEquals(Arrays.asList(getRange(10, 12), getRange(BLOCKS - 1, BLOCKS)),
+                mServer.getRanges());
+    }
+
+    /**
+     * A fetched block that doesn't match the block map fails the download, which
+     * keeps the valid blocks before it.
+     */
+    @Test
+    public void corruptBlock() throws IOException, InterruptedException {
+        byte[] corrupt = mContent.clone();
+        corrupt[10 * BLOCK_SIZE + 1]++;
+        mServer.serve(PACKAGE, corrupt);
+        Result result = new Result();
+        build(result, -1).start();
+        result.await();
+
+        assertFalse(result.mSucceeded);
+        assertArrayEquals(Arrays.copyOf(mContent, 10 * BLOCK_SIZE),
+                Files.readAllBytes(mDestination.toPath()));
+    }
+
+    @Test
+    public void rangesNotSupported() throws IOException, InterruptedException {
+        mServer.setRangesSupported(false);
+        Result result = new Result();
+        build(result, -1).start();
+        result.await();
+
+        assertTrue(result.mSucceeded);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+    }
+
+    @Test
+    public void noBlockMap() throws IOException, InterruptedException {
+        mServer.serve(PACKAGE + BlockMap.EXT, "{}".getBytes(StandardCharsets.UTF_8));
+        Result result = new Result();
+        build(result, -1).start();
+        result.await();
+
+        assertTrue(result.mSucceeded);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertTrue(mServer.getRanges().isEmpty());
+    }
+}
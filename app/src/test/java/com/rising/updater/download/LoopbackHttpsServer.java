@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * HTTPS server on the loopback address for the JVM tests, serving files from memory
+ * with support for single ranges. Its self-signed certificate is trusted by the
+ * connections of the process until it's stopped.
+ */
+public class LoopbackHttpsServer {
+
+    private static final String KEYSTORE = "loopback.p12";
+    private static final char[] KEYSTORE_PASSWORD = "updater".toCharArray();
+
+    private final HttpsServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final SSLSocketFactory mDefaultSocketFactory;
+    private final HostnameVerifier mDefaultHostnameVerifier;
+
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+    private final List<String> mRanges = new CopyOnWriteArrayList<>();
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private volatile boolean mRangesSupported = true;
+    private volatile long mStallMs;
+
+    public LoopbackHttpsServer() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream inputStream =
+                LoopbackHttpsServer.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(inputStream, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(),
+                null);
+
+        mServer = HttpsServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.setHttpsConfigurator(new HttpsConfigurator(context));
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", this::handle);
+        mServer.start();
+
+        mDefaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        mDefaultHostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+        // The certificate is for the loopback address
+        HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) ->
+                InetAddress.getLoopbackAddress().getHostAddress().equals(hostname));
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+        HttpsURLConnection.setDefaultSSLSocketFactory(mDefaultSocketFactory);
+        HttpsURLConnection.setDefaultHostnameVerifier(mDefaultHostnameVerifier);
+    }
+
+    public String getUrl(String path) {
+        return "https://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                mServer.getAddress().getPort() + "/" + path;
+    }
+
+    public void serve(String path, byte[] content) {
+        mFiles.put("/" + path, content);
+    }
+
+    /**
+     * When not supported, ranges are ignored and the whole file is served.
+     */
+    public void setRangesSupported(boolean supported) {
+        mRangesSupported = supported;
+    }
+
+    /**
+     * Wait for the given time between the headers and the body of the responses.
+     */
+    public void setStallMs(long stallMs) {
+        mStallMs = stallMs;
+    }
+
+    /**
+     * @return the Range headers of the requests so far, in order
+     */
+    public List<String> getRanges() {
+        return mRanges;
+    }
+
+    /**
+     * @return the bytes of body sent so far
+     */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] content = mFiles.get(exchange.getRequestURI().getPath());
+            if (content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            int start = 0;
+            int end = content.length - 1;
+            int responseCode = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                mRanges.add(range);
+            }
+            if (range != null && mRangesSupported && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                if (bounds[0].isEmpty()) {
+                    // The last bytes of the file
+                    start = Math.max(0, content.length - Integer.parseInt(bounds[1]));
+                } else {
+                    start = Integer.parseInt(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    }
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes */" + content.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+                responseCode = 206;
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges",
+                    mRangesSupported ? "bytes" : "none");
+            int length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(responseCode, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(responseCode, length);
+            if (mStallMs > 0) {
+                Thread.sleep(mStallMs);
+            }
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(content, start, length);
+                mBytesServed.addAndGet(length);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            exchange.close();
+        }
+    }
+}
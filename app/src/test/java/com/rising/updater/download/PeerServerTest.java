@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves a package on the loopback address and reads it back the way the download
+ * clients do, with HttpURLConnection.
+ */
+public class PeerServerTest {
+
+    private static final String DOWNLOAD_ID = "peer-server-test";
+    private static final int SIZE = 300 * 1024 + 17;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mContent;
+    private File mPackage;
+    private PeerServer mServer;
+    private int mPort;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[SIZE];
+        new Random(SIZE).nextBytes(mContent);
+        mPackage = mFolder.newFile("package.zip");
+        Files.write(mPackage.toPath(), mContent);
+        mServer = new PeerServer(id -> DOWNLOAD_ID.equals(id) ? mPackage : null);
+        mPort = mServer.start(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private String getUrl(String downloadId) {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + mPort +
+                "/" + downloadId;
+    }
+
+    private HttpURLConnection open(String range) throws IOException {
+        HttpURLConnection client =
+                (HttpURLConnection) new URL(getUrl(DOWNLOAD_ID)).openConnection();
+        client.setConnectTimeout(5000);
+        client.setReadTimeout(5000);
+        if (range != null) {
+            client.setRequestProperty("Range", range);
+        }
+        return client;
+    }
+
+    private static byte[] readAll(HttpURLConnection client) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream inputStream = client.getInputStream()) {
+            byte[] b = new byte[8192];
+            int count;
+            while ((count = inputStream.read(b)) > 0) {
+                content.write(b, 0, count);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    @Test
+    public void wholePackage() throws IOException {
+        HttpURLConnection client = open(null);
+        assertEquals(200, client.getResponseCode());
+        assertEquals(SIZE, client.getContentLengthLong());
+        assertEquals("bytes", client.getHeaderField("Accept-Ranges"));
+        assertArrayEquals(mContent, readAll(client));
+    }
+
+    @Test
+    public void ranges() throws IOException {
+        HttpURLConnection client = open("bytes=1000-");
+        assertEquals(206, client.getResponseCode());
+        assertEquals("bytes 1000-" + (SIZE - 1) + "/" + SIZE,
+                client.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 1000, SIZE), readAll(client));
+
+        client = open("bytes=10-19");
+        assertEquals(206, client.getResponseCode());
+        assertEquals("bytes 10-19/" + SIZE, client.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 10, 20), readAll(client));
+
+        // The end is clamped to the size of the package
+        client = open("bytes=" + (SIZE - 5) + "-" + (SIZE + 100));
+        assertEquals(206, client.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(mContent, SIZE - 5, SIZE), readAll(client));
+
+        client = open("bytes=-100");
+        assertEquals(206, client.getResponseCode());
+        assertEquals("bytes " + (SIZE - 100) + "-" + (SIZE - 1) + "/" + SIZE,
+                client.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(mContent, SIZE - 100, SIZE), readAll(client));
+    }
+
+    @Test
+    public void unsatisfiableRanges() throws IOException {
+        for (String range : new String[] {"bytes=" + SIZE + "-", "bytes=20-10", "bytes=-",
+                "items=0-1"}) {
+            HttpURLConnection client = open(range);
+            assertEquals(range, 416, client.getResponseCode());
+            assertEquals(range, "bytes */" + SIZE, client.getHeaderField("Content-Range"));
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void head() throws IOException {
+        HttpURLConnection client = open(null);
+        client.setRequestMethod("HEAD");
+        assertEquals(200, client.getResponseCode());
+        assertEquals(SIZE, client.getContentLengthLong());
+        client.disconnect();
+    }
+
+    @Test
+    public void unknownPackage() throws IOException {
+        HttpURLConnection client =
+                (HttpURLConnection) new URL(getUrl("unknown")).openConnection();
+        assertEquals(404, client.getResponseCode());
+        client.disconnect();
+    }
+
+    /**
+     * Connections beyond the limit are closed instead of waiting for a thread.
+     */
+    @Test
+    public void connectionLimit() throws IOException {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // Requests that are never sent keep the threads busy
+            for (int i = 0; i < PeerServer.MAX_CONNECTIONS; i++) {
+                idle.add(new Socket(address, mPort));
+            }
+            try (Socket socket = new Socket(address, mPort)) {
+                socket.setSoTimeout(5000);
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+
+        // The threads are free again once the idle connections are closed
+        HttpURLConnection client = open("bytes=0-0");
+        assertEquals(206, client.getResponseCode());
+        client.disconnect();
+    }
+
+    /**
+     * A download interrupted halfway resumes from a peer, with the origin unreachable.
+     */
+    @Test
+    public void resumeFromPeer() throws IOException, InterruptedException {
+        File destination = new File(mFolder.getRoot(), "download.zip");
+        try (OutputStream outputStream = new FileOutputStream(destination)) {
+            outputStream.write(mContent, 0, SIZE / 2);
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean succeeded = new AtomicBoolean();
+        DownloadClient client = new DownloadClient.Builder()
+                .setUrl("https://127.0.0.1:1/" + DOWNLOAD_ID)
+                .setPeerUrls(Collections.singletonList(getUrl(DOWNLOAD_ID)))
+                .setDestination(destination)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        succeeded.set(true);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .build();
+        client.resume();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(succeeded.get());
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void cleartextOnlyForPeers() throws IOException {
+        new DownloadClient.Builder()
+                .setUrl(getUrl(DOWNLOAD_ID))
+                .setDestination(new File(mFolder.getRoot(), "download.zip"))
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                    }
+                })
+                .build();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.download;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ThroughputEstimatorTest {
+
+    /**
+     * Feed samples taken every given milliseconds at the given speed, starting from
+     * the given time and bytes.
+     *
+     * @return the bytes transferred at the end
+     */
+    private static long feed(ThroughputEstimator estimator, long start, long end,
+            long interval, long bytes, long speed) {
+        for (long time = start + interval; time <= end; time += interval) {
+            bytes += speed * interval / 1000;
+            estimator.addSample(time, bytes);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void unknownWithoutSamples() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        assertEquals(-1, estimator.getSpeed());
+        assertEquals(-1, estimator.getInstantSpeed());
+        assertEquals(-1, estimator.getAverageSpeed());
+        assertEquals(-1, estimator.getSpeedPercentile(50));
+        assertEquals(-1, estimator.getEta(1000));
+
+        // The first sample only gives the starting point
+        estimator.addSample(0, 0);
+        assertEquals(-1, estimator.getSpeed());
+    }
+
+    @Test
+    public void constantSpeed() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        feed(estimator, 0, 10000, 500, 0, 1000000);
+        assertEquals(1000000, estimator.getSpeed());
+        assertEquals(1000000, estimator.getInstantSpeed());
+        assertEquals(1000000, estimator.getAverageSpeed());
+        assertEquals(5, estimator.getEta(5000000));
+        assertEquals(0, estimator.getEta(-1));
+    }
+
+    @Test
+    public void exponentialAverage() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        estimator.addSample(1000, 1000);
+        assertEquals(1000, estimator.getSpeed());
+        // 1000 + (1 - e^(-1000 / 5000)) * (3000 - 1000)
+        estimator.addSample(2000, 4000);
+        assertEquals(1363, estimator.getSpeed());
+        assertEquals(3000, estimator.getInstantSpeed());
+        assertEquals(2000, estimator.getAverageSpeed());
+        // 1000000 bytes at 1363 bytes per second
+        assertEquals(733, estimator.getEta(1000000));
+    }
+
+    @Test
+    public void independentOfSampleRate() {
+        ThroughputEstimator often = new ThroughputEstimator();
+        ThroughputEstimator seldom = new ThroughputEstimator();
+        often.addSample(0, 0);
+        seldom.addSample(0, 0);
+        long bytesOften = feed(often, 0, 4000, 1000, 0, 100000);
+        long bytesSeldom = feed(seldom, 0, 4000, 1000, 0, 100000);
+        assertEquals(100000, often.getSpeed());
+        assertEquals(100000, seldom.getSpeed());
+
+        // The speed triples for 6 seconds, sampled every 250 ms or every 3 seconds
+        feed(often, 4000, 10000, 250, bytesOften, 300000);
+        feed(seldom, 4000, 10000, 3000, bytesSeldom, 300000);
+        // 300000 - 200000 * e^(-6000 / 5000)
+        long expected = Math.round(300000 - 200000 * Math.exp(-6000 / 5000.0));
+        assertEquals(expected, often.getSpeed(), 1);
+        assertEquals(expected, seldom.getSpeed(), 1);
+    }
+
+    @Test
+    public void shortSamplesAreMerged() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        estimator.addSample(100, 1000);
+        assertEquals(-1, estimator.getSpeed());
+        // Counted from the start, not from the ignored sample
+        estimator.addSample(400, 2000);
+        assertEquals(5000, estimator.getSpeed());
+    }
+
+    @Test
+    public void restartSkipsPause() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        long bytes = feed(estimator, 0, 5000, 1000, 0, 2000);
+        assertEquals(2000, estimator.getSpeed());
+
+        // Paused for a minute, then resumed at the same speed
+        estimator.restart(65000, bytes);
+        assertEquals(-1, estimator.getInstantSpeed());
+        assertEquals(2000, estimator.getSpeed());
+        estimator.addSample(66000, bytes + 2000);
+        assertEquals(2000, estimator.getSpeed());
+        assertEquals(2000, estimator.getInstantSpeed());
+    }
+
+    @Test
+    public void bytesGoingBackRestart() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        estimator.addSample(1000, 8000);
+        // Downloading again from the start
+        estimator.addSample(2000, 0);
+        assertEquals(8000, estimator.getSpeed());
+        estimator.addSample(3000, 8000);
+        assertEquals(8000, estimator.getSpeed());
+        assertEquals(8000, estimator.getAverageSpeed());
+    }
+
+    @Test
+    public void initialSpeed() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.setInitialSpeed(4000);
+        assertEquals(4000, estimator.getSpeed());
+        assertEquals(2, estimator.getEta(8000));
+
+        estimator.addSample(0, 0);
+        estimator.addSample(1000, 4000);
+        assertEquals(4000, estimator.getSpeed());
+        // Ignored once the speed is known
+        estimator.setInitialSpeed(100);
+        assertEquals(4000, estimator.getSpeed());
+    }
+
+    @Test
+    public void percentiles() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        long bytes = 0;
+        // 1000, 2000, ... 10000 bytes per second, in a mixed order
+        long[] speeds = {5000, 1000, 9000, 3000, 7000, 10000, 2000, 8000, 4000, 6000};
+        for (int i = 0; i < speeds.length; i++) {
+            bytes += speeds[i];
+            estimator.addSample((i + 1) * 1000L, bytes);
+        }
+        assertEquals(1000, estimator.getSpeedPercentile(0));
+        assertEquals(1000, estimator.getSpeedPercentile(10));
+        assertEquals(5000, estimator.getSpeedPercentile(50));
+        assertEquals(9000, estimator.getSpeedPercentile(90));
+        assertEquals(10000, estimator.getSpeedPercentile(100));
+        assertEquals(5500, estimator.getAverageSpeed());
+    }
+
+    @Test
+    public void oldSamplesLeaveWindow() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(0, 0);
+        long bytes = feed(estimator, 0, 30000, 1000, 0, 1000);
+        feed(estimator, 30000, 60000, 1000, bytes, 5000);
+        // Only the last 30 seconds are left
+        assertEquals(5000, estimator.getAverageSpeed());
+        assertEquals(5000, estimator.getSpeedPercentile(10));
+    }
+}
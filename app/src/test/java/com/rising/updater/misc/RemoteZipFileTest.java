@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.updater.misc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.rising.updater.download.LoopbackHttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads zip files served by a loopback server, as built by the JDK and as built
+ * by hand for the zip64 fields the JDK only writes for files too big for a test.
+ */
+public class RemoteZipFileTest {
+
+    private static final String ZIP = "update.zip";
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private LoopbackHttpsServer mServer;
+    private byte[] mPayload;
+    private byte[] mProperties;
+
+    @Before
+    public void setUp() throws IOException, GeneralSecurityException {
+        mPayload = new byte[100000];
+        new Random(mPayload.length).nextBytes(mPayload);
+        StringBuilder properties = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            properties.append("KEY_").append(i).append("=value\n");
+        }
+        mProperties = properties.toString().getBytes(StandardCharsets.UTF_8);
+        mServer = new LoopbackHttpsServer();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private RemoteZipFile open(byte[] zip) throws IOException {
+        mServer.serve(ZIP, zip);
+        return new RemoteZipFile(mServer.getUrl(ZIP));
+    }
+
+    private static String getComment(int length) {
+        char[] comment = new char[length];
+        Arrays.fill(comment, 'c');
+        return new String(comment);
+    }
+
+    /**
+     * A stored payload and deflated properties, as in A/B packages.
+     */
+    private byte[] buildZip(String comment, int extraEntries) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream outputStream = new ZipOutputStream(zip)) {
+            for (int i = 0; i < extraEntries; i++) {
+                outputStream.putNextEntry(new ZipEntry("extra/" + i));
+                outputStream.closeEntry();
+            }
+            ZipEntry payload = new ZipEntry(PAYLOAD);
+            payload.setMethod(ZipEntry.STORED);
+            payload.setSize(mPayload.length);
+            CRC32 crc = new CRC32();
+            crc.update(mPayload);
+            payload.setCrc(crc.getValue());
+            outputStream.putNextEntry(payload);
+            outputStream.write(mPayload);
+            outputStream.closeEntry();
+            outputStream.putNextEntry(new ZipEntry(PROPERTIES));
+            outputStream.write(mProperties);
+            outputStream.closeEntry();
+            outputStream.setComment(comment);
+        }
+        return zip.toByteArray();
+    }
+
+    /**
+     * A stored payload whose sizes and offset are only in the zip64 extra fields, with
+     * the zip64 end of central directory. The local header has an alignment field
+     * that the central directory doesn't have, as written by zipalign.
+     */
+    private byte[] buildZip64(int commentLength) {
+        final byte[] name = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+        final int alignment = 13;
+        final int preamble = 64;
+        CRC32 crc = new CRC32();
+        crc.update(mPayload);
+
+        ByteBuffer zip = ByteBuffer.allocate(preamble + 30 + name.length + 20 + 4 + alignment +
+                mPayload.length + 46 + name.length + 28 + 56 + 20 + 22 + commentLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        zip.position(preamble);
+
+        final long localHeaderOffset = zip.position();
+        zip.putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+                .putShort((short) ZipEntry.STORED).putInt(0).putInt((int) crc.getValue())
+                .putInt(0xffffffff).putInt(0xffffffff).putShort((short) name.length)
+                .putShort((short) (20 + 4 + alignment)).put(name);
+        zip.putShort((short) 0x0001).putShort((short) 16)
+                .putLong(mPayload.length).putLong(mPayload.length);
+        zip.putShort((short) 0xd935).putShort((short) alignment).put(new byte[alignment]);
+        zip.put(mPayload);
+
+        final long cdOffset = zip.position();
+        zip.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                .putShort((short) ZipEntry.STORED).putInt(0).putInt((int) crc.getValue())
+                .putInt(0xffffffff).putInt(0xffffffff).putShort((short) name.length)
+                .putShort((short) 28).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putInt(0).putInt(0xffffffff).put(name);
+        zip.putShort((short) 0x0001).putShort((short) 24).putLong(mPayload.length)
+                .putLong(mPayload.length).putLong(localHeaderOffset);
+        final long cdSize = zip.position() - cdOffset;
+
+        final long zip64EocdOffset = zip.position();
+        zip.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                .putInt(0).putInt(0).putLong(1).putLong(1).putLong(cdSize).putLong(cdOffset);
+        zip.putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1);
+        zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0xffff).putShort((short) 0xffff)
+                .putInt(0xffffffff).putInt(0xffffffff).putShort((short) commentLength);
+        zip.put(getComment(commentLength).getBytes(StandardCharsets.US_ASCII));
+        return zip.array();
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        for (int i = 0; i <= array.length - target.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(array, i, i + target.length), target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkPayload(RemoteZipFile zipFile, byte[] zip) throws IOException {
+        RemoteZipFile.Entry payload = zipFile.getEntry(PAYLOAD);
+        assertNotNull(payload);
+        assertEquals(ZipEntry.STORED, payload.getMethod());
+        assertEquals(mPayload.length, payload.getSize());
+        assertEquals(mPayload.length, payload.getCompressedSize());
+        // What the update engine is given to stream the payload
+        assertEquals(indexOf(zip, Arrays.copyOf(mPayload, 64)), zipFile.getDataOffset(payload));
+        assertArrayEquals(mPayload, zipFile.read(payload));
+    }
+
+    private void checkZip(byte[] zip) throws IOException {
+        RemoteZipFile zipFile = open(zip);
+        checkPayload(zipFile, zip);
+        RemoteZipFile.Entry properties = zipFile.getEntry(PROPERTIES);
+        assertNotNull(properties);
+        assertEquals(ZipEntry.DEFLATED, properties.getMethod());
+        assertEquals(mProperties.length, properties.getSize());
+        assertArrayEquals(mProperties, zipFile.read(properties));
+        assertNull(zipFile.getEntry("missing"));
+        assertEquals(mServer.getUrl(ZIP), zipFile.getUrl());
+    }
+
+    @Test
+    public void plainZip() throws IOException {
+        checkZip(buildZip("", 0));
+    }
+
+    /**
+     * The central directory is in the tail read to find the end of central directory.
+     */
+    @Test
+    public void shortComment() throws IOException {
+        checkZip(buildZip(getComment(100), 0));
+    }
+
+    /**
+     * The tail is all comment, the central directory is read separately.
+     */
+    @Test
+    public void maxComment() throws IOException {
+        checkZip(buildZip(getComment(MAX_COMMENT_SIZE), 0));
+    }
+
+    /**
+     * Too many entries for the end of central directory, the JDK writes the zip64 one.
+     */
+    @Test
+    public void zip64Entries() throws IOException {
+        byte[] zip = buildZip("", 0xffff);
+        RemoteZipFile zipFile = open(zip);
+        checkPayload(zipFile, zip);
+        assertNotNull(zipFile.getEntry("extra/" + (0xffff - 1)));
+    }
+
+    @Test
+    public void zip64() throws IOException {
+        byte[] zip = buildZip64(0);
+        checkPayload(open(zip), zip);
+    }
+
+    /**
+     * The zip64 locator and end of central directory precede a comment as long as
+     * the tail that's read for it.
+     */
+    @Test
+    public void zip64MaxComment() throws IOException {
+        byte[] zip = buildZip64(MAX_COMMENT_SIZE);
+        checkPayload(open(zip), zip);
+    }
+
+    @Test(expected = IOException.class)
+    public void notAZip() throws IOException {
+        open(mPayload);
+    }
+
+    @Test(expected = IOException.class)
+    public void rangesNotSupported() throws IOException {
+        mServer.setRangesSupported(false);
+        open(buildZip("", 0));
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void stalledServer() throws IOException {
+        mServer.serve(ZIP, buildZip("", 0));
+        mServer.setStallMs(10000);
+        new RemoteZipFile(mServer.getUrl(ZIP), 200);
+    }
+}